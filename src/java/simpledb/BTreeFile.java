@@ -22,10 +22,20 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final FileHandle handle;
 	private final TupleDesc td;
 	private final int tableid;
 	private int keyField;
 
+	/**
+	 * The order in which iterators visit leaf pages, used to read ahead of them
+	 */
+	static final ReadAhead.Chain RIGHT_SIBLINGS = new ReadAhead.Chain() {
+		public PageId next(Page p) {
+			return p instanceof BTreeLeafPage ? ((BTreeLeafPage) p).getRightSiblingId() : null;
+		}
+	};
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -36,6 +46,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.handle = new FileHandle(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -63,13 +74,25 @@ public class BTreeFile implements DbFile {
 
 	/**
 	 * Returns the TupleDesc of the table stored in this DbFile.
-	 * 
+	 *
 	 * @return TupleDesc of this DbFile.
 	 */
 	public TupleDesc getTupleDesc() {
 		return td;
 	}
 
+	/**
+	 * B+ tree files use the page size of the buffer pool
+	 */
+	public int getPageSize() {
+		return BufferPool.getPageSize();
+	}
+
+	// see DbFile.java for javadocs
+	public void close() throws IOException {
+		handle.close();
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -79,13 +102,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = handle.read(0, pageBuf);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -94,17 +115,11 @@ public class BTreeFile implements DbFile {
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
+				return decodePage(id, pageBuf);
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = handle.read(pageOffset(id.pageNumber()), pageBuf);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -113,29 +128,44 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return decodePage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
+		}
+	}
+
+	/**
+	 * Returns the offset in the file of the page with the specified page number.
+	 * Page 0 is the root pointer page, which is smaller than the other pages.
+	 */
+	private long pageOffset(int pageNo) {
+		if(pageNo == 0)
+			return 0;
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Construct a page of this BTreeFile from its on-disk representation. The page
+	 * category recorded in the page id determines the type of the page.
+	 * 
+	 * @param pid - the id of the page
+	 * @param data - the contents of the page
+	 * @return the page constructed from data
+	 */
+	public Page decodePage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, data);
+		}
+		else if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, data, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, data, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
 		}
 	}
 
@@ -149,18 +179,28 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			handle.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			handle.write(pageOffset(id.pageNumber()), data);
 		}
 	}
 	
+	/**
+	 * Write a run of pages with consecutive page numbers to disk with a single
+	 * write. This should not be called directly but should be called from the
+	 * BufferPool when pages are flushed to disk
+	 * 
+	 * @param pages - the pages to write to disk
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		byte[][] data = new byte[pages.size()][];
+		for (int i = 0; i < data.length; i++)
+			data[i] = pages.get(i).getPageData();
+		handle.write(pageOffset(pages.get(0).getId().pageNumber()), data);
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -177,8 +217,8 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
+	 * Finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. It locks the internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
 	 * 
@@ -190,25 +230,79 @@ public class BTreeFile implements DbFile {
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, BTreePageId)
 	 * 
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, dirtypages, pid, perm, f, null);
+	}
+
+	/**
+	 * Finds and locks the leaf page as {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)}
+	 * does, crabbing down the tree: the lock on each internal node is only held until its
+	 * child is locked, unless tid held it before or has dirtied the node. The leaf keeps its
+	 * lock until tid completes.
+	 * 
+	 * Internal nodes only direct the search, so releasing them early does not let other
+	 * transactions see or change anything tid has read; a transaction that splits or merges
+	 * nodes still locks the nodes it modifies with READ_WRITE permission until it completes,
+	 * so that they can be restored if it aborts. Concurrent inserts therefore only wait for
+	 * each other on the nodes they modify, instead of on every node of their path.
+	 * 
+	 * @param latched - a page whose lock was taken only to find pid, released once pid is locked,
+	 * or null
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			Field f, BTreePageId latched) 
+					throws DbException, TransactionAbortedException {
 		// some code goes here
-		Page p = getPage(tid, dirtypages, pid, perm);
-		if (pid.pgcateg() == BTreePageId.LEAF)
-			return (BTreeLeafPage)p;
-		if (f == null)
-			return findLeafPage(tid, dirtypages, ((BTreeInternalPage)p).iterator().next().getLeftChild(), perm, f);
-		Iterator<BTreeEntry> it = ((BTreeInternalPage)p).iterator();
-		BTreeEntry e = null;
-		while (it.hasNext()) {
-			e = it.next();
-			if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
-				return findLeafPage(tid, dirtypages, e.getLeftChild(), perm, f);
+		while (true) {
+			boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+			boolean latch = !leaf && !lockedBy(tid, dirtypages, pid);
+			Page p = getPage(tid, dirtypages, pid, leaf ? perm : Permissions.READ_ONLY);
+			unlatch(tid, dirtypages, latched);
+			if (leaf)
+				return (BTreeLeafPage)p;
+			latched = latch ? pid : null;
+			pid = ((BTreeInternalPage)p).findChild(f);
 		}
-		return findLeafPage(tid, dirtypages, e.getRightChild(), perm, f);
+	}
+
+	/**
+	 * @return true if tid has pid locked or dirtied already, so that a lock taken on pid
+	 * to walk past it must be kept
+	 */
+	private static boolean lockedBy(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+		return tid.isReadOnly() || dirtypages.containsKey(pid)
+				|| Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	/**
+	 * Release the lock on latched, unless it is null or has been dirtied since it was locked
+	 */
+	private static void unlatch(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId latched) {
+		if (latched != null && !dirtypages.containsKey(latched))
+			Database.getBufferPool().releasePage(tid, latched);
+	}
+
+	/**
+	 * Finds and locks the leaf page as
+	 * {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, BTreePageId)}
+	 * does, starting from the root pointer page, which is crabbed over as well.
+	 * 
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null to find the left-most leaf page
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean latch = !lockedBy(tid, dirtypages, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, rootPtr.getRootId(), perm, f, latch ? rootPtrId : null);
 	}
 	
 	/**
@@ -496,6 +590,8 @@ public class BTreeFile implements DbFile {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean latch = !lockedBy(tid, dirtypages, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
@@ -507,7 +603,8 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField),
+				latch ? rootPtrId : null);
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -1003,15 +1100,10 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(handle.size() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				handle.write(0, BTreeRootPtrPage.createEmptyPageData());
+				handle.write(pageOffset(1), BTreeLeafPage.createEmptyPageData());
 			}
 		}
 
@@ -1067,12 +1159,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				emptyPageNo = numPages() + 1;
+				handle.write(pageOffset(emptyPageNo), BTreeInternalPage.createEmptyPageData());
 			}
 		}
 
@@ -1102,10 +1190,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		handle.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1226,6 +1311,20 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in sorted order. If coldScan
+	 * is set, the leaf pages after the first one are fetched with the cold scan hint
+	 * so the scan does not evict the internal pages used by lookups.
+	 * 
+	 * @param tid - the transaction id
+	 * @param coldScan - whether the scan should bypass the buffer pool's working set
+	 * @return an iterator for all the tuples in this file
+	 * @see BufferPool#getPage(TransactionId, PageId, Permissions, boolean)
+	 */
+	public DbFileIterator iterator(TransactionId tid, boolean coldScan) {
+		return new BTreeFileIterator(this, tid, coldScan);
+	}
+
 }
 
 /**
@@ -1238,6 +1337,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	TransactionId tid;
 	BTreeFile f;
+	boolean coldScan;
+	ReadAhead readAhead;
 
 	/**
 	 * Constructor for this iterator
@@ -1245,21 +1346,48 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * @param tid - the transaction id
 	 */
 	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+		this(f, tid, false);
+	}
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param coldScan - whether to fetch leaf pages with the cold scan hint
+	 */
+	public BTreeFileIterator(BTreeFile f, TransactionId tid, boolean coldScan) {
 		this.f = f;
 		this.tid = tid;
+		this.coldScan = coldScan;
+		this.readAhead = new ReadAhead(BTreeFile.RIGHT_SIBLINGS, coldScan);
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		readAhead.reset();
+		pin(f.findLeafPage(tid, Permissions.READ_ONLY, null).getId());
+	}
+
+	/**
+	 * Unpin the current leaf page, if any, and pin the specified one
+	 */
+	private void pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+		unpin();
+		curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
+				pid, Permissions.READ_ONLY, coldScan);
+		readAhead.visited(curp);
 		it = curp.iterator();
 	}
 
+	private void unpin() {
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		curp = null;
+		it = null;
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1274,12 +1402,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
-				curp = null;
+				unpin();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				pin(nextp);
 				if (!it.hasNext())
 					it = null;
 			}
@@ -1303,8 +1429,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
-		curp = null;
+		unpin();
 	}
 }
 
@@ -1320,6 +1445,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	ReadAhead readAhead;
 
 	/**
 	 * Constructor for this iterator
@@ -1331,6 +1457,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		// only these scans are known to run up to the last leaf; reading
+		// ahead of the others would load pages past the end of the range
+		if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ)
+			this.readAhead = new ReadAhead(BTreeFile.RIGHT_SIBLINGS, false);
 	}
 
 	/**
@@ -1338,19 +1468,43 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreeLeafPage leaf;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			leaf = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			leaf = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
+		if(readAhead != null)
+			readAhead.reset();
+		pin(leaf.getId());
+		// skip the tuples of the first leaf that are less than the field
+		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN_OR_EQ)
+			it = curp.iterator(curp.findSlot(ipred.getField(), true));
+		else if(ipred.getOp() == Op.GREATER_THAN)
+			it = curp.iterator(curp.findSlot(ipred.getField(), false));
+	}
+
+	/**
+	 * Unpin the current leaf page, if any, and pin the specified one
+	 */
+	private void pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+		unpin();
+		curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
+				pid, Permissions.READ_ONLY, false);
+		if(readAhead != null)
+			readAhead.visited(curp);
 		it = curp.iterator();
 	}
 
+	private void unpin() {
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		curp = null;
+		it = null;
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1383,12 +1537,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
+				unpin();
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				pin(nextp);
 			}
 		}
 
@@ -1408,6 +1561,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
+		unpin();
 	}
 }
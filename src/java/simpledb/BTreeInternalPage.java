@@ -601,6 +601,51 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Find the child of this page that is the root of the left-most subtree possibly
+	 * containing the key field f, by binary search over the key slots. Unlike walking
+	 * the entries with {@link #iterator()}, this does not create an entry for each key.
+	 *
+	 * @param f - the field to search for, or null to find the left-most child
+	 * @return the id of the child page
+	 */
+	public BTreePageId findChild(Field f) {
+		// the left child of the first key greater than or equal to f is the child in
+		// the used slot before it; if there is no such key, it is the right child of
+		// the last key
+		int child = (f == null ? 1 : findKey(f)) - 1;
+		while (child > 0 && !isSlotUsed(child))
+			child--;
+		return new BTreePageId(pid.getTableId(), children[child], childCategory);
+	}
+
+	/**
+	 * Binary search for the first used key slot whose key is greater than or equal to f.
+	 * Empty slots between the keys are skipped over to the right.
+	 *
+	 * @return the slot, or the number of slots if all keys are less than f
+	 */
+	private int findKey(Field f) {
+		int found = numSlots;
+		int lo = 1;
+		int hi = numSlots - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int s = mid;
+			while (s <= hi && !isSlotUsed(s))
+				s++;
+			if (s > hi)
+				hi = mid - 1;
+			else if (f.compare(Op.LESS_THAN_OR_EQ, keys[s])) {
+				found = s;
+				hi = mid - 1;
+			}
+			else
+				lo = s + 1;
+		}
+		return found;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
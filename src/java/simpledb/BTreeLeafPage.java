@@ -323,16 +323,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = findSlot(t.getField(keyField), false) - 1;
+		while (lessOrEqKey >= 0 && !isSlotUsed(lessOrEqKey))
+			lessOrEqKey--;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -483,6 +476,44 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param slot - the slot to start at
+	 * @return an iterator over the tuples on this page from the specified slot on
+	 * @see #findSlot(Field, boolean)
+	 */
+	public Iterator<Tuple> iterator(int slot) {
+		return new BTreeLeafPageIterator(this, slot);
+	}
+
+	/**
+	 * Binary search for the first used slot whose key is greater than or equal to f, or
+	 * greater than f if inclusive is false. Empty slots between the tuples are skipped
+	 * over to the right, so that the search does not allocate.
+	 *
+	 * @return the slot, or the number of slots if there is no such key on this page
+	 */
+	public int findSlot(Field f, boolean inclusive) {
+		Predicate.Op op = inclusive ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+		int found = numSlots;
+		int lo = 0;
+		int hi = numSlots - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int s = mid;
+			while (s <= hi && !isSlotUsed(s))
+				s++;
+			if (s > hi)
+				hi = mid - 1;
+			else if (f.compare(op, tuples[s].getField(keyField))) {
+				found = s;
+				hi = mid - 1;
+			}
+			else
+				lo = s + 1;
+		}
+		return found;
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -529,6 +560,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int curTuple) {
+		this.p = p;
+		this.curTuple = curTuple;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
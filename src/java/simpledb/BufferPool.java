@@ -2,8 +2,14 @@ package simpledb;
 
 import java.io.*;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.*;
 
 /**
@@ -27,371 +33,846 @@ public class BufferPool {
     other classes. BufferPool should use the numPages;argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
-    private int numPages;
-    private int pageCnt;
-    private ConcurrentHashMap<PageId, Page> pageMap;
 
-    public class LinkList {
+    /** Maximum number of shards a BufferPool is split into by default */
+    public static final int DEFAULT_SHARDS = 16;
+    /** By default, a pool is only split into shards of at least this many pages */
+    private static final int MIN_SHARD_PAGES = 64;
 
-        public class Node {
+    /** Fraction of an off-heap shard that is also kept decoded on the heap */
+    private static final double DECODED_FRACTION = 0.1;
 
-            public PageId pageId;
-            public Node next;
+    /** Default number of pages prefetched ahead of a sequential scan */
+    public static final int DEFAULT_READ_AHEAD = 8;
+    /** Number of background threads that serve prefetch requests */
+    private static final int PREFETCH_THREADS = 2;
 
-            public Node(PageId pageId) {
-                this.pageId = pageId;
+    private final Shard[] shards;
+    private final LockManager lockManager;
+    /** the pages each running transaction has locked for writing or put in the pool */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writeSets;
+    /** the pins each running transaction holds, one entry per pin */
+    private final ConcurrentHashMap<TransactionId, List<PageId>> pinSets;
+    /** the fraction of the pool each table with a quota may occupy */
+    private final ConcurrentHashMap<Integer, Double> tableQuotas;
+    /** the fraction of the pool each transaction with a quota may fill */
+    private final ConcurrentHashMap<TransactionId, Double> transactionQuotas;
+    private final VersionStore versions;
+    private final CommitStamps stamps;
+    /** the pages each running read-only transaction of a single-version pool has read */
+    private final ConcurrentHashMap<TransactionId, CommitStamps.ReadSet> readSets;
+    /** the snapshot timestamp of each running read-only transaction of a multi-version pool */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots;
+    private volatile boolean multiVersion;
+    private final PageWriter writer;
+    private final ThreadPoolExecutor prefetcher;
+    private volatile int readAhead = DEFAULT_READ_AHEAD;
+
+    /**
+     * A partition of the buffer pool. Every page belongs to exactly one shard,
+     * chosen by the hash of its PageId. A shard caches up to its share of the
+     * pool, has its own replacement policy and counters, and is latched on its
+     * own monitor, so transactions working on different shards never wait for
+     * each other.
+     * <p>
+     * With off-heap frames, the bytes of every resident page are kept in the
+     * shard's FrameArena and only up to decodedLimit recently used pages are
+     * also held as Page objects in pageMap. Dirty and write-locked pages stay
+     * decoded until they are flushed and unlocked.
+     */
+    private class Shard {
+
+        /** the number of frames of frameSize bytes this shard holds */
+        private final int capacity;
+        private final int frameSize;
+        /** the number of frames taken by resident pages */
+        private int used;
+        /** the number of frames of each resident page that takes more than one */
+        private final HashMap<PageId, Integer> largePages;
+        private final HashMap<PageId, Page> pageMap;
+        private final ReplacementPolicy policy;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long prefetches;
+        private long prefetchHits;
+        private long wastedPrefetches;
+        /** pages loaded by prefetch that no getPage has asked for yet */
+        private final HashSet<PageId> prefetched;
+        /** the number of pins on each pinned page */
+        private final HashMap<PageId, Integer> pins;
+        /** the number of resident pages of each table */
+        private final HashMap<Integer, Integer> tablePages;
+        /** the resident pages loaded by each transaction that has a quota */
+        private final HashMap<TransactionId, HashSet<PageId>> quotaPages;
+
+        /** null unless the shard keeps its pages off-heap */
+        private final FrameArena arena;
+        private final HashMap<PageId, int[]> frameOf;
+        /** pages in pageMap, least recently used at the head */
+        private final PageList decoded;
+        private final int decodedLimit;
+        private PageId keepDecoded;
+
+        private final ReplacementPolicy.Evictable clean = new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                if (pins.containsKey(pid))
+                    return false;
+                // dirty pages may not be written out under NO STEAL
+                Page p = pageMap.get(pid);
+                if (p != null)
+                    return p.isDirty() == null;
+                return arena != null && frameOf.containsKey(pid);
+            }
+        };
+
+        private final ReplacementPolicy.Evictable trimmable = new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                // a write-locked page may be modified before it is marked dirty
+                return !pid.equals(keepDecoded) && pageMap.get(pid).isDirty() == null
+                    && !lockManager.isExclusivelyLocked(pid) && !pins.containsKey(pid);
+            }
+        };
+
+        Shard(int capacity, ReplacementPolicy.Kind policyKind, boolean offHeap) {
+            this.capacity = capacity;
+            this.frameSize = BufferPool.getPageSize();
+            this.largePages = new HashMap<PageId, Integer>();
+            this.pageMap = new HashMap<PageId, Page>();
+            this.policy = policyKind.create(capacity);
+            this.prefetched = new HashSet<PageId>();
+            this.pins = new HashMap<PageId, Integer>();
+            this.tablePages = new HashMap<Integer, Integer>();
+            this.quotaPages = new HashMap<TransactionId, HashSet<PageId>>();
+            if (offHeap) {
+                this.arena = new FrameArena(capacity, frameSize);
+                this.frameOf = new HashMap<PageId, int[]>();
+                this.decoded = new PageList();
+                this.decodedLimit = Math.max(1, (int) (capacity * DECODED_FRACTION));
+            }
+            else {
+                this.arena = null;
+                this.frameOf = null;
+                this.decoded = null;
+                this.decodedLimit = 0;
             }
         }
-        public Node head;
-        public Node tail;
 
-        public LinkList() {
-            head = tail = null;
+        /** @return the number of frames a page of the file of pid takes */
+        private int framesFor(PageId pid) {
+            int size = Database.getCatalog().getDatabaseFile(pid.getTableId()).getPageSize();
+            return Math.max(1, (size + frameSize - 1) / frameSize);
+        }
+
+        /** @return the number of frames resident page pid takes */
+        private int framesOf(PageId pid) {
+            Integer n = largePages.get(pid);
+            return n == null ? 1 : n;
+        }
+
+        private int[] allocate(int n) {
+            int[] frames = new int[n];
+            for (int i = 0; i < n; i++)
+                frames[i] = arena.allocate();
+            return frames;
+        }
+
+        /** Copy the bytes of page pid into its frames */
+        private void store(PageId pid, byte[] data) {
+            int[] frames = frameOf.get(pid);
+            for (int i = 0; i < frames.length; i++) {
+                int off = i * frameSize;
+                arena.write(frames[i], data, off, Math.min(frameSize, data.length - off));
+            }
         }
 
-        public synchronized void add(PageId pageId) {
-            if (head == null) {
-                head = new Node(pageId);
-                tail = head;
+        synchronized Page getPage(PageId pid, TransactionId tid, boolean coldScan, boolean pin)
+            throws DbException {
+            Page p = pageMap.get(pid);
+            if (p != null) {
+                hits++;
+            }
+            else if (arena != null && frameOf.containsKey(pid)) {
+                hits++;
+                p = decodeFrame(pid);
+                pageMap.put(pid, p);
             }
             else {
-                tail.next = new Node(pageId);
-                tail = tail.next;
+                misses++;
+                p = load(pid, tid);
             }
+            if (prefetched.remove(pid)) {
+                prefetchHits++;
+                // the page was read on behalf of tid
+                charge(pid, tid);
+            }
+            if (pin)
+                pins.put(pid, pinCount(pid) + 1);
+            if (arena != null)
+                touchDecoded(pid);
+            if (coldScan)
+                policy.pageScanned(pid);
+            else
+                policy.pageAccessed(pid);
+            return p;
         }
 
-        public synchronized void del(PageId pageId) {
-            if (head == null) return;
-            if (head.pageId.equals(pageId)) {
-                head = head.next;
-                if (head == null)
-                    tail = null;
-                else if (head.next == null)
-                    tail = head;
-                return;
+        synchronized int pinCount(PageId pid) {
+            Integer n = pins.get(pid);
+            return n == null ? 0 : n;
+        }
+
+        synchronized void unpin(PageId pid) {
+            int n = pinCount(pid);
+            if (n > 1)
+                pins.put(pid, n - 1);
+            else
+                pins.remove(pid);
+        }
+
+        /**
+         * Load pid into this shard ahead of a request for it, unless it is
+         * cached already
+         *
+         * @return the page, or null if it could not be loaded
+         */
+        synchronized Page prefetch(PageId pid, boolean coldScan) {
+            Page p = pageMap.get(pid);
+            if (p != null)
+                return p;
+            try {
+                if (arena != null && frameOf.containsKey(pid))
+                    return decodeFrame(pid);
+                p = load(pid, null);
+            } catch (DbException e) {
+                // e.g. every page is dirty; a prefetch is only a hint
+                return null;
             }
-            for (Node n = head; n.next != null; n = n.next)
-                if (n.next.pageId.equals(pageId)) {
-                    n.next = n.next.next;
-                    if (n.next == null)
-                        tail = n;
-                    return;
-                }
+            prefetches++;
+            prefetched.add(pid);
+            if (arena != null)
+                touchDecoded(pid);
+            if (coldScan)
+                policy.pageScanned(pid);
+            else
+                policy.pageAccessed(pid);
+            return p;
         }
-        public synchronized void clear() {
-            head = tail = null;
+
+        /** Load pid into this shard if it is not cached and a frame is free */
+        synchronized void warm(PageId pid) throws DbException {
+            if (pageMap.containsKey(pid) || (arena != null && frameOf.containsKey(pid))
+                    || used + framesFor(pid) > capacity)
+                return;
+            load(pid, null);
+            if (arena != null)
+                touchDecoded(pid);
+            policy.pageAccessed(pid);
         }
-    }
 
-    public LinkList LRU;
+        synchronized ArrayList<PageId> residentPages() {
+            return new ArrayList<PageId>(arena == null ? pageMap.keySet() : frameOf.keySet());
+        }
 
-    /**
-     * Creates a BufferPool that caches up to numPages pages.
-     *
-     * @param numPages maximum number of pages in this buffer pool.
-     */
-    public BufferPool(int numPages) {
-        // some code goes here
-        this.numPages = numPages;
-        this.pageCnt = 0;
-        this.pageMap = new ConcurrentHashMap<PageId, Page>();
-        this.LRU = new LinkList();
-        this.locker = new Locker();
-    }
-    
-    public static int getPageSize() {
-        return pageSize;
-    }
-    
-    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
-    public static void setPageSize(int pageSize) {
-    	BufferPool.pageSize = pageSize;
-    }
-    
-    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
-    public static void resetPageSize() {
-    	BufferPool.pageSize = PAGE_SIZE;
-    }
+        /**
+         * Read pid from disk into this shard on behalf of tid, or of a
+         * prefetch if tid is null, evicting another page if necessary
+         */
+        private Page load(PageId pid, TransactionId tid) throws DbException {
+            Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            int n = framesFor(pid);
+            makeRoom(pid, tid, n);
+            if (arena != null)
+                frameOf.put(pid, allocate(n));
+            pageMap.put(pid, p);
+            added(pid, tid, n);
+            return p;
+        }
 
-    public enum LockType {
-        SHARED_LOCK, EXCLUSIVE_LOCK;
-    }
+        /**
+         * Evict pages until there are n free frames for pid, which tid is
+         * about to load. If the table of pid, or tid, is at its quota, one of
+         * its own pages is evicted first, if it has one that can be.
+         */
+        private void makeRoom(PageId pid, TransactionId tid, int n) throws DbException {
+            if (n > capacity)
+                throw new DbException("page " + pid + " is larger than a buffer pool shard");
+            final int tableId = pid.getTableId();
+            Double quota = tableQuotas.get(tableId);
+            boolean evicted = quota != null && tablePages(tableId) >= limit(quota)
+                && evictOwn(new ReplacementPolicy.Evictable() {
+                    public boolean canEvict(PageId victim) {
+                        return victim.getTableId() == tableId && clean.canEvict(victim);
+                    }
+                });
+            quota = tid == null ? null : transactionQuotas.get(tid);
+            final HashSet<PageId> own = tid == null ? null : quotaPages.get(tid);
+            if (!evicted && quota != null && own != null && own.size() >= limit(quota))
+                evictOwn(new ReplacementPolicy.Evictable() {
+                    public boolean canEvict(PageId victim) {
+                        return own.contains(victim) && clean.canEvict(victim);
+                    }
+                });
+            while (used + n > capacity)
+                evictPage();
+        }
 
-    public class Locker {
+        /** @return the number of pages of this shard a quota of fraction allows */
+        private int limit(double fraction) {
+            return Math.max(1, (int) (capacity * fraction));
+        }
 
-        public class Lock {
+        private boolean evictOwn(ReplacementPolicy.Evictable own) {
+            PageId victim = policy.chooseVictim(own);
+            if (victim == null)
+                return false;
+            discardPage(victim);
+            evictions++;
+            return true;
+        }
 
-            public LockType lockType;
-            public Vector<TransactionId> tids;
+        /** Account for pid, which has just become resident in n frames */
+        private void added(PageId pid, TransactionId tid, int n) {
+            used += n;
+            if (n > 1)
+                largePages.put(pid, n);
+            tablePages.put(pid.getTableId(), tablePages(pid.getTableId()) + 1);
+            charge(pid, tid);
+        }
 
-            public Lock() {
-                this.lockType = null;
-                this.tids = new Vector<TransactionId>();
-            }
-            public Lock(LockType lockType) {
-                this.lockType = lockType;
-                this.tids = new Vector<TransactionId>();
+        /** Count pid against the quota of tid, if tid has one */
+        private void charge(PageId pid, TransactionId tid) {
+            if (tid == null || !transactionQuotas.containsKey(tid))
+                return;
+            HashSet<PageId> own = quotaPages.get(tid);
+            if (own == null) {
+                own = new HashSet<PageId>();
+                quotaPages.put(tid, own);
             }
+            own.add(pid);
         }
 
-        private ConcurrentHashMap<PageId, Lock> pageLockTable; // Locks on a page
-        private ConcurrentHashMap<TransactionId, Vector<PageId>> dirtyPagesTable; // Pages dirtied by tid
-        private ConcurrentHashMap<Integer, AtomicInteger> pidObjectTable;
+        synchronized int tablePages(int tableId) {
+            Integer n = tablePages.get(tableId);
+            return n == null ? 0 : n;
+        }
 
-        public Locker() {
-            pageLockTable = new ConcurrentHashMap<PageId, Lock>();
-            dirtyPagesTable = new ConcurrentHashMap<TransactionId, Vector<PageId>>();
-            pidObjectTable = new ConcurrentHashMap<Integer, AtomicInteger>();
-            deadlockDetector = new DeadlockDetector();
+        /** Stop counting pages against the quota of tid */
+        synchronized void forget(TransactionId tid) {
+            quotaPages.remove(tid);
         }
 
-        public AtomicInteger getPidObject(int x) {
-            Integer X = new Integer(x);
-            if (pidObjectTable.containsKey(X))
-                return pidObjectTable.get(X);
-            AtomicInteger atoInt = new AtomicInteger(X);
-            pidObjectTable.put(X, atoInt);
-            return atoInt;
+        private Page decodeFrame(PageId pid) throws DbException {
+            DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            int[] frames = frameOf.get(pid);
+            byte[] data = new byte[f.getPageSize()];
+            for (int i = 0; i < frames.length; i++) {
+                int off = i * frameSize;
+                arena.read(frames[i], data, off, Math.min(frameSize, data.length - off));
+            }
+            try {
+                return f.decodePage(pid, data);
+            } catch (IOException e) {
+                throw new DbException("could not decode page " + pid + ": " + e.getMessage());
+            }
         }
 
-        public void acquireSharedLock(TransactionId tid, PageId pid)
-            throws TransactionAbortedException {
-            if (!dirtyPagesTable.containsKey(tid)) {
-                Vector<PageId> pidSet = new Vector<PageId>();
-                pidSet.add(pid);
-                dirtyPagesTable.put(tid, pidSet);
+        /** Cache p, replacing any existing version of the page */
+        synchronized void putPage(Page p) throws DbException {
+            PageId pid = p.getId();
+            boolean resident = pageMap.remove(pid) != null
+                || (arena != null && frameOf.containsKey(pid));
+            int n = resident ? framesOf(pid) : framesFor(pid);
+            if (!resident) {
+                makeRoom(pid, null, n);
+                if (arena != null)
+                    frameOf.put(pid, allocate(n));
             }
-            else {
-                Vector<PageId> pidSet = dirtyPagesTable.get(tid);
-                pidSet.add(pid);
-                dirtyPagesTable.put(tid, pidSet);
-            }
-            Vector<TransactionId> tidSet;
-            synchronized(getPidObject(pid.hashCode())) {
-                while(true) {
-                    if (!pageLockTable.containsKey(pid)) {
-                        Lock lock = new Lock(LockType.SHARED_LOCK);
-                        lock.tids.add(tid);
-                        pageLockTable.put(pid, lock);
-                        break;
-                    }
-                    Lock lock = pageLockTable.get(pid);
-                    if (lock.lockType == LockType.SHARED_LOCK) {
-                        if (!lock.tids.contains(tid)) {
-                            lock.tids.add(tid);
-                            pageLockTable.put(pid, lock);
-                        }
-                        break;
-                    }
-                    else if (lock.lockType == LockType.EXCLUSIVE_LOCK && lock.tids.contains(tid))
-                        break;
-                    Iterator<TransactionId> it = lock.tids.iterator();
-                    TransactionId depTid = it.next();
-                    if (!tid.equals(depTid))
-                        deadlockDetector.addEdge(tid, depTid);
-                    if (deadlockDetector.hasDeadLock(tid))
-                        throw new TransactionAbortedException();
-                    try {
-                        getPidObject(pid.hashCode()).wait();
-                    } catch (InterruptedException e) {}
-                }
+            pageMap.put(pid, p);
+            if (!resident)
+                added(pid, null, n);
+            if (arena != null)
+                touchDecoded(pid);
+            policy.pageAccessed(pid);
+        }
+
+        /**
+         * Mark pid as the most recently used decoded page, and move the
+         * least recently used clean pages back to their frames while there
+         * are more than decodedLimit decoded pages
+         */
+        private void touchDecoded(PageId pid) {
+            decoded.addLast(pid);
+            keepDecoded = pid;
+            while (decoded.size() > decodedLimit) {
+                PageId victim = decoded.firstEvictable(trimmable);
+                if (victim == null)
+                    break;
+                store(victim, pageMap.remove(victim).getPageData());
+                decoded.remove(victim);
             }
+            keepDecoded = null;
         }
 
-        public void acquireExclusiveLock(TransactionId tid, PageId pid) 
-            throws TransactionAbortedException {
-            if (!dirtyPagesTable.containsKey(tid)) {
-                Vector<PageId> pidSet = new Vector<PageId>();
-                pidSet.add(pid);
-                dirtyPagesTable.put(tid, pidSet);
+        synchronized void discardPage(PageId pid) {
+            policy.pageRemoved(pid);
+            if (prefetched.remove(pid))
+                wastedPrefetches++;
+            if (pageMap.containsKey(pid) || (arena != null && frameOf.containsKey(pid))) {
+                used -= framesOf(pid);
+                largePages.remove(pid);
+                int n = tablePages(pid.getTableId());
+                if (n > 1)
+                    tablePages.put(pid.getTableId(), n - 1);
+                else
+                    tablePages.remove(pid.getTableId());
+                for (HashSet<PageId> own : quotaPages.values())
+                    own.remove(pid);
             }
-            else {
-                Vector<PageId> pidSet = dirtyPagesTable.get(tid);
-                pidSet.add(pid);
-                dirtyPagesTable.put(tid, pidSet);
-            }
-            Vector<TransactionId> tidSet;
-            synchronized(getPidObject(pid.hashCode())) {
-                while(true) {
-                    if (!pageLockTable.containsKey(pid)) {
-                        Lock lock = new Lock(LockType.EXCLUSIVE_LOCK);
-                        lock.tids.add(tid);
-                        pageLockTable.put(pid, lock);
-                        break;
-                    }
-                    Lock lock = pageLockTable.get(pid);
-                    if (lock.lockType == LockType.SHARED_LOCK && lock.tids.size() == 1 && lock.tids.contains(tid)) {
-                        lock.lockType = LockType.EXCLUSIVE_LOCK;
-                        pageLockTable.put(pid, lock);
-                        break;
-                    }
-                    else if (lock.lockType == LockType.EXCLUSIVE_LOCK && lock.tids.contains(tid))
-                        break;
-                    if (lock.lockType == LockType.SHARED_LOCK) {
-                        Iterator<TransactionId> it = lock.tids.iterator();
-                        while (it.hasNext()) {
-                            TransactionId depTid = it.next();
-                            if (!tid.equals(depTid))
-                                deadlockDetector.addEdge(tid, depTid);
-                        }
-                        if (deadlockDetector.hasDeadLock(tid))
-                            throw new TransactionAbortedException();
-                    }
-                    else {
-                        Iterator<TransactionId> it = lock.tids.iterator();
-                        TransactionId depTid = it.next();
-                        if (!tid.equals(depTid))
-                            deadlockDetector.addEdge(tid, depTid);
-                        if (deadlockDetector.hasDeadLock(tid))
-                            throw new TransactionAbortedException();
-                    }
-                    try {
-                        getPidObject(pid.hashCode()).wait();
-                    } catch (InterruptedException e) {}
+            if (pageMap.containsKey(pid)) {
+                try {
+                    flushPage(pid);
+                } catch(IOException e) {
+                    e.printStackTrace();
                 }
+                pageMap.remove(pid);
+            }
+            if (arena != null) {
+                decoded.remove(pid);
+                int[] frames = frameOf.remove(pid);
+                if (frames != null)
+                    for (int frame : frames)
+                        arena.free(frame);
             }
         }
 
+        synchronized void flushPage(PageId pid) throws IOException {
+            Page p = pageMap.get(pid);
+            if (p == null || p.isDirty() == null)
+                return;
+            DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            try {
+                f.writePage(p);
+                p.markDirty(false, null);
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-        public class DeadlockDetector {
-
-            public ConcurrentHashMap<TransactionId, Vector<TransactionId>> tidDepGraph;
-            private ConcurrentHashMap<TransactionId, Integer> dfn;
-            private ConcurrentHashMap<TransactionId, Integer> low;
-            private ConcurrentHashMap<TransactionId, Integer> fresh;
-            private ConcurrentHashMap<TransactionId, Boolean> inStack;
-            private int tot;
-            private Stack<TransactionId> stack;
-            private boolean deadLockFound;
-
-            public DeadlockDetector() {
-                tidDepGraph = new ConcurrentHashMap<TransactionId, Vector<TransactionId>>();
-            }
-
-            private void tarjan(TransactionId tid) {
-                if (deadLockFound || !tidDepGraph.containsKey(tid))
-                    return;
-                tot++;
-                dfn.put(tid, tot);
-                low.put(tid, tot);
-                stack.push(tid);
-                inStack.put(tid, true);
-                Vector<TransactionId> tidSet = tidDepGraph.get(tid);
-                Iterator<TransactionId> it = tidSet.iterator();
-                while (it.hasNext()) {
-                    TransactionId nextTid = it.next();
-                    if (!dfn.containsKey(nextTid) || dfn.get(nextTid) == 0) {
-                        tarjan(nextTid);
-                        if (deadLockFound) return;
-                        if (!dfn.containsKey(nextTid)) continue;
-                        int tidLow = low.get(tid);
-                        int nxtLow = low.get(nextTid);
-                        if (nxtLow < tidLow)
-                            low.put(tid, nxtLow);
-                    }
-                    else if (inStack.containsKey(nextTid) && inStack.get(nextTid) == true) {
-                        int tidLow = low.get(tid);
-                        int nxtDfn = dfn.get(nextTid);
-                        if (nxtDfn < tidLow)
-                            low.put(tid, nxtDfn);
-                    }
-                }
-                if (dfn.get(tid) == low.get(tid)) {
-                    if (stack.pop() != tid) {
-                        deadLockFound = true;
-                        return;
-                    }
-                    inStack.put(tid, false);
-                }
+        synchronized void flushAllPages() throws IOException {
+            for (PageId pid : pageMap.keySet())
+                flushPage(pid);
+        }
+
+        /** @return the cached version of pid if tid dirtied it, null otherwise */
+        synchronized Page dirtyPage(PageId pid, TransactionId tid) {
+            Page p = pageMap.get(pid);
+            return p != null && p.isDirty() == tid ? p : null;
+        }
+
+        /** @return the cached version of pid if it is clean, null otherwise */
+        synchronized Page cleanPage(PageId pid) {
+            Page p = pageMap.get(pid);
+            return p != null && p.isDirty() == null ? p : null;
+        }
+
+        /**
+         * Mark p clean after it was written out on behalf of tid, and make
+         * what was written its before image
+         */
+        synchronized void written(Page p, TransactionId tid) {
+            if (p.isDirty() == tid) {
+                p.markDirty(false, null);
+                p.setBeforeImage();
             }
+        }
 
-            public synchronized boolean hasDeadLock(TransactionId stTid) {
-                /*dfn = new ConcurrentHashMap<TransactionId, Integer>();
-                low = new ConcurrentHashMap<TransactionId, Integer>();
-                fresh = new ConcurrentHashMap<TransactionId, Integer>();
-                inStack = new ConcurrentHashMap<TransactionId, Boolean>();
-                tot = 0;
-                stack = new Stack<TransactionId>();
-                deadLockFound = false;
-                for (TransactionId tid : tidDepGraph.keySet())
-                    if (!dfn.containsKey(tid)) {
-                        tarjan(tid);
-                        if (deadLockFound)
-                            return true;
-                    }
-                return false;*/
-                Queue<TransactionId> q = new LinkedList<>();
-                HashSet<TransactionId> used = new HashSet<>();
-                q.add(stTid);
-                while (!q.isEmpty()) {
-                    TransactionId tid = q.poll();
-                    if (tidDepGraph.containsKey(tid)) {
-                        Vector<TransactionId> tids = tidDepGraph.get(tid);
-                        Iterator<TransactionId> it = tids.iterator();
-                        while(it.hasNext()) {
-                            TransactionId nxtTid = it.next();
-                            if (nxtTid.equals(stTid))
-                                return true;
-                            if (used.contains(nxtTid))
-                                continue;
-                            q.add(nxtTid);
-                            used.add(nxtTid);
-                        }
+        /**
+         * Make the cached version of pid its before image if it is clean.
+         * A page tid dirtied may have been written out, by flushAllPages or
+         * discardPage, before tid committed; its before image still predates
+         * tid then.
+         */
+        synchronized void committed(PageId pid) {
+            Page p = pageMap.get(pid);
+            if (p != null && p.isDirty() == null)
+                p.setBeforeImage();
+        }
+
+        /**
+         * Replace pid, which tid has write-locked, with its before image
+         * unless another transaction dirtied it. A page tid changed but had
+         * not marked dirty yet when it aborted, such as a B+ tree page in the
+         * middle of a split, is restored as well.
+         *
+         * @return the restored page, or null if pid was left alone
+         */
+        synchronized Page restorePage(PageId pid, TransactionId tid) {
+            Page p = pageMap.get(pid);
+            if (p == null || (p.isDirty() != null && p.isDirty() != tid))
+                return null;
+            Page restored = p.getBeforeImage();
+            pageMap.put(pid, restored);
+            policy.pageAccessed(pid);
+            return restored;
+        }
+
+        /**
+         * Discards a page from this shard.
+         * Flushes the page to disk to ensure dirty pages are updated on disk.
+         */
+        private void evictPage() throws DbException {
+            PageId victim = policy.chooseVictim(clean);
+            if (victim == null)
+                throw new DbException("All dirty!");
+            discardPage(victim);
+            evictions++;
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+        this(numPages, ReplacementPolicy.Kind.LRU);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the specified replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyKind the replacement policy to use
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policyKind) {
+        this(numPages, policyKind,
+                Math.max(1, Math.min(DEFAULT_SHARDS, numPages / MIN_SHARD_PAGES)));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numShards independently latched shards of (nearly) equal size.
+     * Each shard evicts its pages according to its own instance of the
+     * specified replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyKind the replacement policy to use
+     * @param numShards the number of shards, between 1 and numPages
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policyKind, int numShards) {
+        this(numPages, policyKind, numShards, false);
+    }
+
+    /**
+     * Creates a BufferPool as {@link #BufferPool(int, ReplacementPolicy.Kind)}
+     * does, optionally keeping the cached pages in off-heap frames.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyKind the replacement policy to use
+     * @param offHeapFrames true to keep page bytes outside of the Java heap
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policyKind, boolean offHeapFrames) {
+        this(numPages, policyKind,
+                Math.max(1, Math.min(DEFAULT_SHARDS, numPages / MIN_SHARD_PAGES)), offHeapFrames);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numShards shards.
+     * <p>
+     * If offHeapFrames is set, the pool preallocates one page-sized frame per
+     * page in direct memory and keeps the bytes of cached pages there. Only a
+     * small fraction of the pool is held as decoded Page objects at a time;
+     * other cached pages are decoded again from their frame when they are
+     * requested, which is much cheaper than reading them from disk and keeps
+     * the heap (and GC pauses) small for large pools. Callers must therefore
+     * not rely on getting the same Page object back for a page they do not
+     * hold an exclusive lock on.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyKind the replacement policy to use
+     * @param numShards the number of shards, between 1 and numPages
+     * @param offHeapFrames true to keep page bytes outside of the Java heap
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policyKind, int numShards,
+            boolean offHeapFrames) {
+        // some code goes here
+        if (numShards < 1 || numShards > Math.max(numPages, 1))
+            throw new IllegalArgumentException("invalid number of shards " + numShards);
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard(numPages / numShards + (i < numPages % numShards ? 1 : 0),
+                    policyKind, offHeapFrames);
+        this.lockManager = new LockManager();
+        this.writeSets = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        this.pinSets = new ConcurrentHashMap<TransactionId, List<PageId>>();
+        this.tableQuotas = new ConcurrentHashMap<Integer, Double>();
+        this.transactionQuotas = new ConcurrentHashMap<TransactionId, Double>();
+        this.versions = new VersionStore();
+        this.stamps = new CommitStamps();
+        this.readSets = new ConcurrentHashMap<TransactionId, CommitStamps.ReadSet>();
+        this.snapshots = new ConcurrentHashMap<TransactionId, Long>();
+        this.writer = new PageWriter();
+        this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BufferPool prefetcher");
+                        t.setDaemon(true);
+                        return t;
                     }
-                }
-                return false;
+                });
+        this.prefetcher.allowCoreThreadTimeOut(true);
+    }
+
+    private Shard shardOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    /** @return the number of shards this pool is split into */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /** @return the number of getPage calls that found the page cached */
+    public long getHitCount() {
+        long n = 0;
+        for (Shard shard : shards)
+            synchronized(shard) {
+                n += shard.hits;
             }
-            public synchronized void addEdge(TransactionId tid1, TransactionId tid2) {
-                Vector<TransactionId> tidSet;
-                if (!tidDepGraph.containsKey(tid1)) 
-                    tidSet = new Vector<TransactionId>();
-                else
-                    tidSet = tidDepGraph.get(tid1);
-                if (!tidSet.contains(tid2))
-                    tidSet.add(tid2);
-                tidDepGraph.put(tid1, tidSet);
+        return n;
+    }
+
+    /** @return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        long n = 0;
+        for (Shard shard : shards)
+            synchronized(shard) {
+                n += shard.misses;
             }
+        return n;
+    }
+
+    /** @return the number of writes the background writer issued for commits */
+    public long getFlushWriteCount() {
+        return writer.getWriteCount();
+    }
 
-            public synchronized void removeEdge(TransactionId tid) {
-                tidDepGraph.remove(tid);
-                for (Vector<TransactionId> tidSet : tidDepGraph.values())
-                    tidSet.remove(tid);
+    /** @return the number of pages the background writer wrote for commits */
+    public long getFlushedPageCount() {
+        return writer.getPageCount();
+    }
+
+    /** @return the number of pages loaded by prefetch requests */
+    public long getPrefetchCount() {
+        long n = 0;
+        for (Shard shard : shards)
+            synchronized(shard) {
+                n += shard.prefetches;
             }
-        }
+        return n;
+    }
 
-        private DeadlockDetector deadlockDetector;
+    /** @return the number of prefetched pages that were later requested by getPage */
+    public long getPrefetchHitCount() {
+        long n = 0;
+        for (Shard shard : shards)
+            synchronized(shard) {
+                n += shard.prefetchHits;
+            }
+        return n;
+    }
 
-        public void releaseLock(TransactionId tid) {
-            if (!dirtyPagesTable.containsKey(tid))
-                return;
-            Vector<PageId> dirtyPages = dirtyPagesTable.get(tid);
-            Iterator<PageId> it = dirtyPages.iterator();
-            while (it.hasNext()) {
-                PageId pid = it.next();
-                synchronized(getPidObject(pid.hashCode())) {
-                    if (pageLockTable.containsKey(pid)) {
-                        Lock lock = pageLockTable.get(pid);
-                            if (lock.tids.contains(tid))
-                                lock.tids.remove(tid);
-                            if (lock.tids.size() == 0) {
-                                pageLockTable.remove(pid);
-                            }
-                    }
-                    getPidObject(pid.hashCode()).notify();
-                }
+    /** @return the number of prefetched pages that were evicted before anyone asked for them */
+    public long getWastedPrefetchCount() {
+        long n = 0;
+        for (Shard shard : shards)
+            synchronized(shard) {
+                n += shard.wastedPrefetches;
             }
-            deadlockDetector.removeEdge(tid);
-            dirtyPagesTable.remove(tid);
-        }
+        return n;
+    }
 
-        public boolean holdsLock(TransactionId tid, PageId pid) {
-            if (!pageLockTable.containsKey(pid))
-                return false;
-            return pageLockTable.get(pid).tids.contains(tid);
+    /** @return the number of pages prefetched ahead of a sequential scan */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Set the number of pages prefetched ahead of a sequential scan
+     *
+     * @param numPages the read-ahead window, 0 to disable read-ahead
+     */
+    public void setReadAhead(int numPages) {
+        if (numPages < 0)
+            throw new IllegalArgumentException("negative read-ahead " + numPages);
+        this.readAhead = numPages;
+    }
+
+    /**
+     * Set how transactions that would wait into a deadlock are aborted
+     *
+     * @see LockManager.DeadlockPolicy
+     */
+    public void setDeadlockPolicy(LockManager.DeadlockPolicy policy) {
+        lockManager.setDeadlockPolicy(policy);
+    }
+
+    /** Set how long a lock request waits under DeadlockPolicy.TIMEOUT, in ms */
+    public void setLockTimeout(long millis) {
+        lockManager.setLockTimeout(millis);
+    }
+
+    /**
+     * Set the number of page locks a transaction takes in one table before
+     * it tries to lock the whole table instead
+     *
+     * @param numPages the threshold, 0 to never escalate
+     */
+    public void setLockEscalationThreshold(int numPages) {
+        lockManager.setEscalationThreshold(numPages);
+    }
+
+    /** @return the counters of the page and table locks taken through this pool */
+    public LockStats getLockStats() {
+        return lockManager.getStats();
+    }
+
+    /**
+     * @return a description of which transactions wait for which, one line
+     *   per waiting lock request
+     */
+    public String dumpWaitsForGraph() {
+        return lockManager.dumpWaitsForGraph();
+    }
+
+    /**
+     * Turn multi-version concurrency control on or off. In a multi-version
+     * pool, every commit keeps the images its pages had before as long as
+     * a running snapshot may need them, and {@link TransactionId#isReadOnly
+     * read-only} transactions read a snapshot of the state of the last
+     * commit before their first page access. Otherwise, read-only
+     * transactions read the committed images of pages optimistically and
+     * abort as soon as a commit changes a page they have read.
+     * <p>
+     * Either way read-only transactions take no locks, so they neither wait
+     * for writers nor make writers wait for them. Other transactions lock
+     * pages as usual. Must not be changed while transactions are running.
+     *
+     * @see CommitStamps
+     */
+    public void setMultiVersion(boolean multiVersion) {
+        this.multiVersion = multiVersion;
+    }
+
+    /** @return true if read-only transactions read snapshots */
+    public boolean isMultiVersion() {
+        return multiVersion;
+    }
+
+    /** @return the number of page images kept for running snapshots */
+    public int getNumPageVersions() {
+        return versions.getNumVersions();
+    }
+
+    /**
+     * Limit the pages of the specified table to the specified fraction of
+     * the pool. Once the table has that many pages cached, reading another
+     * of its pages evicts one of its own pages, if one of them can be
+     * evicted, rather than a page of another table.
+     *
+     * @param tableId the id of the table
+     * @param fraction a fraction of the pool between 0 and 1; 1 removes the
+     *   quota
+     */
+    public void setTableQuota(int tableId, double fraction) {
+        if (fraction <= 0 || fraction > 1)
+            throw new IllegalArgumentException("invalid quota " + fraction);
+        if (fraction == 1)
+            tableQuotas.remove(tableId);
+        else
+            tableQuotas.put(tableId, fraction);
+    }
+
+    /**
+     * Limit the pages read on behalf of the specified transaction to the
+     * specified fraction of the pool, as {@link #setTableQuota} does for a
+     * table. The quota ends when the transaction completes.
+     *
+     * @param tid the transaction, usually that of a {@link Query}
+     * @param fraction a fraction of the pool between 0 and 1; 1 removes the
+     *   quota
+     */
+    public void setTransactionQuota(TransactionId tid, double fraction) {
+        if (fraction <= 0 || fraction > 1)
+            throw new IllegalArgumentException("invalid quota " + fraction);
+        if (fraction == 1) {
+            if (transactionQuotas.remove(tid) != null)
+                for (Shard shard : shards)
+                    shard.forget(tid);
         }
+        else
+            transactionQuotas.put(tid, fraction);
     }
 
-    private Locker locker;
+    /** @return the number of cached pages of the specified table */
+    public int getTableOccupancy(int tableId) {
+        int n = 0;
+        for (Shard shard : shards)
+            n += shard.tablePages(tableId);
+        return n;
+    }
+
+    /**
+     * @return the number of frames of {@link #getPageSize()} bytes taken by
+     *   cached pages; a page of a file with larger pages takes several
+     */
+    public int getNumUsedFrames() {
+        int n = 0;
+        for (Shard shard : shards)
+            synchronized(shard) {
+                n += shard.used;
+            }
+        return n;
+    }
+
+    /** @return the number of pages currently held as Page objects on the heap */
+    public int getNumDecodedPages() {
+        int n = 0;
+        for (Shard shard : shards)
+            synchronized(shard) {
+                n += shard.pageMap.size();
+            }
+        return n;
+    }
+
+    /** @return the number of pages evicted to make room for others */
+    public long getEvictionCount() {
+        long n = 0;
+        for (Shard shard : shards)
+            synchronized(shard) {
+                n += shard.evictions;
+            }
+        return n;
+    }
+    
+    public static int getPageSize() {
+        return pageSize;
+    }
+    
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setPageSize(int pageSize) {
+    	BufferPool.pageSize = pageSize;
+    }
+    
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetPageSize() {
+    	BufferPool.pageSize = PAGE_SIZE;
+    }
 
     /**
      * Retrieve the specified page with the associated permissions.
@@ -409,27 +890,305 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, as
+     * {@link #getPage(TransactionId, PageId, Permissions)} does.
+     * <p>
+     * If coldScan is set, the access does not count towards keeping the page
+     * cached: a page that is already resident keeps its place in the
+     * replacement order, and a page that has to be read from disk is placed
+     * where it will be evicted first. Large scans use this so that they only
+     * recycle a few frames instead of flushing the working set.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param coldScan true if the page is read by a cache-bypassing scan
+     * @see ReplacementPolicy#pageScanned
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean coldScan)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        if (tid.isReadOnly())
+            return readOnlyPage(tid, pid, perm, coldScan);
+        lock(tid, pid, perm);
+        return shardOf(pid).getPage(pid, tid, coldScan, false);
+    }
+
+    /**
+     * Retrieve the specified page as
+     * {@link #getPage(TransactionId, PageId, Permissions, boolean)} does,
+     * and pin it. A pinned page is not evicted, and stays the same Page
+     * object, until every pin on it is released with {@link #unpinPage}.
+     * Pins that tid still holds when it completes are released then.
+     * <p>
+     * Iterators pin the page they are reading so that they can walk it
+     * without asking the pool for it again. The pages read-only transactions
+     * get are private copies and are not pinned.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param coldScan true if the page is read by a cache-bypassing scan
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, boolean coldScan)
+        throws TransactionAbortedException, DbException {
+        if (tid.isReadOnly())
+            return readOnlyPage(tid, pid, perm, coldScan);
+        lock(tid, pid, perm);
+        List<PageId> pinSet = pinSets.get(tid);
+        if (pinSet == null) {
+            pinSet = Collections.synchronizedList(new ArrayList<PageId>());
+            List<PageId> existing = pinSets.putIfAbsent(tid, pinSet);
+            if (existing != null)
+                pinSet = existing;
+        }
+        Page p = shardOf(pid).getPage(pid, tid, coldScan, true);
+        pinSet.add(pid);
+        return p;
+    }
+
+    /**
+     * Release one pin that tid holds on pid. Nothing is done if tid holds
+     * no pins at all, as after it completed, which released them.
+     *
+     * @throws IllegalStateException if tid holds pins, but none on pid
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        if (tid.isReadOnly())
+            return;
+        List<PageId> pinSet = pinSets.get(tid);
+        if (pinSet == null)
+            return;
+        if (!pinSet.remove(pid))
+            throw new IllegalStateException(tid + " holds no pin on " + pid);
+        shardOf(pid).unpin(pid);
+    }
+
+    /** @return the number of pins held on pid */
+    public int getPinCount(PageId pid) {
+        return shardOf(pid).pinCount(pid);
+    }
+
+    private void lock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
         if (perm == Permissions.READ_ONLY)
-            locker.acquireSharedLock(tid, pid);
-        else if (perm == Permissions.READ_WRITE)
-            locker.acquireExclusiveLock(tid, pid);
-        Page p = null;
-        if (pageMap.containsKey(pid))
-            p = pageMap.get(pid);
-        else {
-            p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            while (pageCnt >= numPages)
-                evictPage();
-            pageMap.put(pid, p);
-            pageCnt++;
+            lockManager.acquire(tid, pid, LockManager.Mode.SHARED);
+        else if (perm == Permissions.READ_WRITE) {
+            lockManager.acquire(tid, pid, LockManager.Mode.EXCLUSIVE);
+            addToWriteSet(tid, pid);
+        }
+    }
+
+    /**
+     * @return a private copy of the image of pid read-only transaction tid
+     *     sees, without locking it
+     */
+    private Page readOnlyPage(TransactionId tid, PageId pid, Permissions perm, boolean coldScan)
+        throws TransactionAbortedException, DbException {
+        if (perm == Permissions.READ_WRITE)
+            throw new DbException("read-only transaction cannot write " + pid);
+        if (multiVersion)
+            return snapshotPage(tid, pid, coldScan);
+        CommitStamps.ReadSet readSet = readSets.get(tid);
+        if (readSet == null) {
+            readSet = stamps.newReadSet();
+            readSets.put(tid, readSet);
         }
-        LRU.del(pid);
-        LRU.add(pid);
+        long stamp = stamps.stamp(pid);
+        Page p = shardOf(pid).getPage(pid, tid, coldScan, false).getBeforeImage();
+        stamps.read(readSet, pid, stamp);
         return p;
     }
 
+    /**
+     * @return the image of pid the snapshot of read-only transaction tid
+     *     sees. Saved images are looked up both before and after reading the
+     *     committed image, because a commit saves the image it replaces
+     *     before it replaces it.
+     */
+    private Page snapshotPage(TransactionId tid, PageId pid, boolean coldScan)
+        throws DbException {
+        Long ts = snapshots.get(tid);
+        if (ts == null) {
+            ts = versions.beginSnapshot();
+            snapshots.put(tid, ts);
+        }
+        Page p = versions.getVersion(pid, ts);
+        if (p != null)
+            return p;
+        p = shardOf(pid).getPage(pid, tid, coldScan, false).getBeforeImage();
+        Page saved = versions.getVersion(pid, ts);
+        return saved != null ? saved : p;
+    }
+
+    /**
+     * Record that tid may dirty pid. Only these pages need to be looked at
+     * when tid commits or aborts.
+     */
+    private void addToWriteSet(TransactionId tid, PageId pid) {
+        Set<PageId> writeSet = writeSets.get(tid);
+        if (writeSet == null) {
+            writeSet = Collections.synchronizedSet(new HashSet<PageId>());
+            Set<PageId> existing = writeSets.putIfAbsent(tid, writeSet);
+            if (existing != null)
+                writeSet = existing;
+        }
+        writeSet.add(pid);
+    }
+
+    /** @return a copy of the pages tid may have dirtied */
+    private ArrayList<PageId> writeSet(TransactionId tid) {
+        Set<PageId> writeSet = writeSets.get(tid);
+        if (writeSet == null)
+            return new ArrayList<PageId>();
+        synchronized(writeSet) {
+            return new ArrayList<PageId>(writeSet);
+        }
+    }
+
+    /**
+     * Asynchronously load up to numPages pages into the buffer pool, starting
+     * with first and following chain from each page to the next. Pages that
+     * are already cached are not read again. No locks are acquired: a
+     * transaction that later asks for a prefetched page still has to lock it
+     * through getPage.
+     *
+     * @param first the first page to load
+     * @param numPages the maximum number of pages to load
+     * @param chain gives the page to load after each loaded page
+     * @param coldScan true if the pages are loaded for a cold scan
+     * @see ReadAhead
+     */
+    public void prefetch(final PageId first, final int numPages, final ReadAhead.Chain chain,
+            final boolean coldScan) {
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                PageId pid = first;
+                try {
+                    for (int i = 0; i < numPages && pid != null; i++) {
+                        Page p = shardOf(pid).prefetch(pid, coldScan);
+                        if (p == null)
+                            return;
+                        pid = chain.next(p);
+                    }
+                } catch (RuntimeException e) {
+                    // the file went away while the request was queued;
+                    // a prefetch is only a hint
+                }
+            }
+        });
+    }
+
+    /** Tags of the kinds of page ids in the files written by {@link #savePageIds} */
+    private static final byte HEAP_PAGE_ID = 0;
+    private static final byte BTREE_PAGE_ID = 1;
+
+    /**
+     * Write the ids of the heap and B+ tree pages in the pool to f, so that
+     * {@link #loadPageIds} can load the same pages after a restart. The
+     * file holds the number of ids, followed by each id as a tag for its
+     * kind and its fields.
+     */
+    public void savePageIds(File f) throws IOException {
+        ArrayList<PageId> pids = new ArrayList<PageId>();
+        for (Shard shard : shards) {
+            for (PageId pid : shard.residentPages()) {
+                if (pid instanceof HeapPageId || pid instanceof BTreePageId)
+                    pids.add(pid);
+            }
+        }
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(pids.size());
+            for (PageId pid : pids) {
+                out.writeByte(pid instanceof HeapPageId ? HEAP_PAGE_ID : BTREE_PAGE_ID);
+                out.writeInt(pid.getTableId());
+                out.writeInt(pid.pageNumber());
+                if (pid instanceof BTreePageId)
+                    out.writeInt(((BTreePageId) pid).pgcateg());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load the pages whose ids were written to f by {@link #savePageIds}
+     * into the free frames of the pool. Each file is read in page order,
+     * and different files are read in parallel. Pages of tables that are
+     * not in the catalog, or no longer exist, are skipped. No locks are
+     * acquired.
+     */
+    public void loadPageIds(File f) throws IOException {
+        TreeMap<Integer, ArrayList<PageId>> byTable = new TreeMap<Integer, ArrayList<PageId>>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            for (int n = in.readInt(); n > 0; n--) {
+                PageId pid = readPageId(in);
+                ArrayList<PageId> pids = byTable.get(pid.getTableId());
+                if (pids == null) {
+                    pids = new ArrayList<PageId>();
+                    byTable.put(pid.getTableId(), pids);
+                }
+                pids.add(pid);
+            }
+        } finally {
+            in.close();
+        }
+
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final ArrayList<PageId> pids : byTable.values()) {
+            Collections.sort(pids, new Comparator<PageId>() {
+                public int compare(PageId a, PageId b) {
+                    return Integer.compare(a.pageNumber(), b.pageNumber());
+                }
+            });
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (PageId pid : pids) {
+                        try {
+                            shardOf(pid).warm(pid);
+                        } catch (DbException e) {
+                            return null;
+                        } catch (RuntimeException e) {
+                            // the table or page no longer exists
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> done : prefetcher.invokeAll(tasks))
+                done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException("could not load pages", e.getCause());
+        }
+    }
+
+    /** Read a page id in the format written by {@link #savePageIds} */
+    private static PageId readPageId(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        int tableId = in.readInt();
+        int pgNo = in.readInt();
+        switch (tag) {
+        case HEAP_PAGE_ID:
+            return new HeapPageId(tableId, pgNo);
+        case BTREE_PAGE_ID:
+            return new BTreePageId(tableId, pgNo, in.readInt());
+        default:
+            throw new IOException("unknown kind of page id " + tag);
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -442,7 +1201,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        locker.releaseLock(tid);
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -460,7 +1219,7 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        return locker.holdsLock(tid, pid);
+        return lockManager.holdsLock(tid, pid);
     }
 
     /**
@@ -477,21 +1236,34 @@ public class BufferPool {
         if (commit)
             flushPages(tid);
         else { // abort
-            for (ConcurrentHashMap.Entry<PageId, Page> entry : pageMap.entrySet()) {
-                PageId pid = entry.getKey();
-                Page p = entry.getValue();
-                if (p.isDirty() == tid) {
+            for (PageId pid : writeSet(tid)) {
+                Page restored = shardOf(pid).restorePage(pid, tid);
+                // the aborted inserts may have filled the page
+                if (restored instanceof HeapPage) {
                     DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                    p = f.readPage(pid);
-                    if (pageMap.containsKey(pid)) {
-                        pageMap.put(pid, p);
-                        LRU.del(pid);
-                        LRU.add(pid);
-                    }
+                    if (f instanceof HeapFile)
+                        ((HeapFile) f).pageRestored((HeapPage) restored);
                 }
             }
         }
-        locker.releaseLock(tid);
+        writeSets.remove(tid);
+        List<PageId> pinSet = pinSets.remove(tid);
+        if (pinSet != null)
+            synchronized(pinSet) {
+                for (PageId pid : pinSet)
+                    shardOf(pid).unpin(pid);
+            }
+        if (transactionQuotas.remove(tid) != null)
+            for (Shard shard : shards)
+                shard.forget(tid);
+        if (tid.isReadOnly()) {
+            readSets.remove(tid);
+            Long snapshot = snapshots.remove(tid);
+            if (snapshot != null)
+                versions.endSnapshot(snapshot);
+        }
+        else
+            lockManager.releaseAll(tid);
     }
 
     /**
@@ -516,18 +1288,9 @@ public class BufferPool {
         DbFile f = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pages = f.insertTuple(tid, t);
         for (Page p : pages) {
-            PageId pid = p.getId();
             p.markDirty(true, tid);
-            LRU.del(pid);
-            LRU.add(pid);
-            if (pageMap.containsKey(pid)) {
-                pageMap.remove(pid);
-                pageCnt--;
-            }
-            while (pageMap.size() >= numPages)
-                evictPage();
-            pageMap.put(p.getId(), p);
-            pageCnt++;
+            addToWriteSet(tid, p.getId());
+            shardOf(p.getId()).putPage(p);
         }
     }
 
@@ -551,18 +1314,9 @@ public class BufferPool {
         DbFile f = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         ArrayList<Page> pages = f.deleteTuple(tid, t);
         for (Page p : pages) {
-            PageId pid = p.getId();
             p.markDirty(true, tid);
-            LRU.del(pid);
-            LRU.add(pid);
-            if (pageMap.containsKey(pid)) {
-                pageMap.remove(pid);
-                pageCnt--;
-            }
-            while (pageMap.size() >= numPages)
-                evictPage();
-            pageMap.put(p.getId(), p);
-            pageCnt++;
+            addToWriteSet(tid, p.getId());
+            shardOf(p.getId()).putPage(p);
         }
     }
 
@@ -571,11 +1325,11 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pid : pageMap.keySet())
-            flushPage(pid);
+        for (Shard shard : shards)
+            shard.flushAllPages();
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -586,74 +1340,59 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        LRU.del(pid);
-        if (pageMap.containsKey(pid)) {
-            try {
-                flushPage(pid);
-            } catch(IOException e) {
-                e.printStackTrace();
-            }
-            pageMap.remove(pid);
-            pageCnt--;
-        }
+        shardOf(pid).discardPage(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page p = pageMap.get(pid);
-        if (p == null || p.isDirty() == null)
-            return;
-        try {
-            f.writePage(p);
-            p.markDirty(false, null);
-        } catch(IOException e) {
-            e.printStackTrace();
-        }
-        LRU.del(pid);
-        LRU.add(pid);
+        shardOf(pid).flushPage(pid);
     }
 
     /** Write all pages of the specified transaction to disk.
+     * The pages are handed to the background writer, which coalesces them
+     * with the pages of other committing transactions; this method returns
+     * once they are on disk. In a multi-version pool, the previous images of
+     * the pages are kept for the snapshots that started before.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (ConcurrentHashMap.Entry<PageId, Page> entry : pageMap.entrySet()) {
-            PageId pid = entry.getKey();
-            Page p = entry.getValue();
-            if (p.isDirty() == tid)
-                flushPage(pid);
+        ArrayList<Page> pages = new ArrayList<Page>();
+        // pages of tid already written out, whose before images are stale
+        ArrayList<Page> flushed = new ArrayList<Page>();
+        for (PageId pid : writeSet(tid)) {
+            Page p = shardOf(pid).dirtyPage(pid, tid);
+            if (p != null)
+                pages.add(p);
+            else if ((p = shardOf(pid).cleanPage(pid)) != null)
+                flushed.add(p);
+        }
+        if (pages.isEmpty() && flushed.isEmpty())
+            return;
+        ArrayList<Page> committed = new ArrayList<Page>(pages);
+        committed.addAll(flushed);
+        long ts = multiVersion ? versions.beginCommit(committed) : 0;
+        int[] stripes = stamps.beginCommit(committed);
+        try {
+            if (!pages.isEmpty())
+                writer.write(pages);
+            for (Page p : pages)
+                shardOf(p.getId()).written(p, tid);
+            for (Page p : flushed)
+                shardOf(p.getId()).committed(p.getId());
+        } finally {
+            stamps.endCommit(stripes);
+            if (ts != 0)
+                versions.endCommit(ts);
         }
-    }
-
-    /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
-     */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        LinkList.Node node = LRU.head;
-        if (node == null)
-            throw new DbException("All dirty!");
-        Page p = pageMap.get(node.pageId);
-        while (node != null && (p.isDirty() != null || !pageMap.containsKey(node.pageId))) {
-            node = node.next;
-            if (node != null)
-                p = pageMap.get(node.pageId);
-        }
-        if (node == null)
-            throw new DbException("All dirty!");
-        discardPage(node.pageId);
     }
 
 }
@@ -60,8 +60,19 @@ public class Catalog {
         if (name2id.containsKey(name)) {
             
         }
-        tableMap.put(id, new Table(file, name, pkeyField));
+        Table old = tableMap.put(id, new Table(file, name, pkeyField));
         name2id.put(name, id);
+        if (old != null && old.file != file)
+            close(old);
+    }
+
+    /** Release the open file of a table that was dropped from the catalog */
+    private static void close(Table t) {
+        try {
+            t.file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public void addTable(DbFile file, String name) {
@@ -135,15 +146,21 @@ public class Catalog {
         return tableMap.get(id).name;
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, and release their open files */
     public void clear() {
         // some code goes here
+        ConcurrentHashMap<Integer, Table> dropped = tableMap;
         tableMap = new ConcurrentHashMap<Integer, Table>();
         name2id = new ConcurrentHashMap<String, Integer>();
+        for (Table t : dropped.values())
+            close(t);
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes a table as "name (field type [pk], ...)", optionally
+     * followed by "mapped" to load a read-mostly table as a MappedHeapFile
+     * and "pagesize=N" to give its file pages of N bytes.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -184,14 +201,33 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                // optional annotations after the field list: "mapped" loads a
+                // read-mostly table as a MappedHeapFile, "pagesize=N" sets the
+                // page size of its file
+                boolean mapped = false;
+                int pageSize = BufferPool.getPageSize();
+                for (String annotation : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (annotation.equals(""))
+                        continue;
+                    else if (annotation.equals("mapped"))
+                        mapped = true;
+                    else if (annotation.startsWith("pagesize="))
+                        pageSize = Integer.parseInt(annotation.substring("pagesize=".length()));
+                    else {
+                        System.out.println("Unknown table annotation " + annotation);
+                        System.exit(0);
+                    }
+                }
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf = mapped ? new MappedHeapFile(tabFile, t, pageSize)
+                                        : new HeapFile(tabFile, t, pageSize);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
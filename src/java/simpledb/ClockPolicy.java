@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ClockPolicy approximates LRU with a ring of frames and one reference bit
+ * per frame. An access only sets the bit, so hits never reorder anything;
+ * the clock hand clears bits as it sweeps and evicts the first evictable
+ * page whose bit is already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final HashMap<PageId, Integer> slotOf;
+    private final ArrayDeque<Integer> freeSlots;
+    private int hand;
+    /** pages loaded by cold scans and not referenced since; evicted ahead of the sweep */
+    private final PageList scanned;
+
+    /**
+     * @param numPages the initial number of frames in the ring; the ring
+     *   grows if more pages become resident
+     */
+    public ClockPolicy(int numPages) {
+        int n = Math.max(numPages, 1);
+        frames = new PageId[n];
+        referenced = new boolean[n];
+        slotOf = new HashMap<PageId, Integer>();
+        freeSlots = new ArrayDeque<Integer>();
+        for (int i = 0; i < n; i++)
+            freeSlots.add(i);
+        hand = 0;
+        scanned = new PageList();
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        referenced[slotFor(pid)] = true;
+        scanned.remove(pid);
+    }
+
+    public synchronized void pageScanned(PageId pid) {
+        if (!slotOf.containsKey(pid)) {
+            slotFor(pid);
+            scanned.addFirst(pid);
+        }
+    }
+
+    private int slotFor(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot == null) {
+            if (freeSlots.isEmpty())
+                grow();
+            slot = freeSlots.poll();
+            frames[slot] = pid;
+            slotOf.put(pid, slot);
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int n = frames.length;
+        frames = Arrays.copyOf(frames, n * 2);
+        referenced = Arrays.copyOf(referenced, n * 2);
+        for (int i = n; i < n * 2; i++)
+            freeSlots.add(i);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot == null)
+            return;
+        frames[slot] = null;
+        referenced[slot] = false;
+        freeSlots.add(slot);
+        scanned.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        PageId victim = scanned.firstEvictable(evictable);
+        if (victim != null)
+            return victim;
+        // two sweeps: the first may only be clearing reference bits
+        for (int i = 0; i < frames.length * 2; i++) {
+            int slot = hand;
+            hand = (hand + 1) % frames.length;
+            PageId pid = frames[slot];
+            if (pid == null)
+                continue;
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            if (evictable.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(frames, null);
+        Arrays.fill(referenced, false);
+        slotOf.clear();
+        freeSlots.clear();
+        for (int i = 0; i < frames.length; i++)
+            freeSlots.add(i);
+        hand = 0;
+        scanned.clear();
+    }
+}
@@ -0,0 +1,168 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * CommitStamps lets read-only transactions read committed pages without
+ * locking them, and check that what they read is consistent.
+ * <p>
+ * Pages are hashed onto a fixed number of stripes, each with a stamp that
+ * holds the number of commits of the stripe's pages that are in progress
+ * and the number that have completed. A commit registers itself in the
+ * stamps of its pages before it changes their committed images, and counts
+ * itself as completed once it has. A reader takes the stamp of a page when
+ * no commit of its stripe is in progress, copies its committed image, and
+ * checks that the stamp has not changed, like a seqlock. It remembers the
+ * stamp of every stripe it has read. As long as none of those stamps has
+ * changed, everything the transaction has read is the current committed
+ * state, and so a consistent one. Pages that share a stripe only cause
+ * spurious aborts.
+ * <p>
+ * Every commit also increments a global epoch once it has registered
+ * itself, so a reader only has to compare its stamps again when a commit has
+ * started since it last did.
+ * <p>
+ * A commit holds its stripes while its pages are written to disk, so a
+ * reader that finds a commit in progress blocks on the stripe's monitor
+ * until the commit ends, rather than spinning for the length of the write.
+ */
+public class CommitStamps {
+
+    /** Number of stripes the pages are hashed onto */
+    private static final int STRIPES = 1024;
+    /** the part of a stamp that counts the commits in progress */
+    private static final long IN_PROGRESS = 0xffff;
+    /** the part of a stamp that counts one completed commit */
+    private static final long COMPLETED = IN_PROGRESS + 1;
+
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    private final AtomicLong epoch = new AtomicLong();
+    /** the monitors readers wait on for the commits of a stripe to end */
+    private final Object[] monitors = new Object[STRIPES];
+    /** the number of readers waiting on each stripe */
+    private final AtomicIntegerArray waiters = new AtomicIntegerArray(STRIPES);
+
+    public CommitStamps() {
+        for (int i = 0; i < STRIPES; i++)
+            monitors[i] = new Object();
+    }
+
+    /** The stamps of the stripes one read-only transaction has read */
+    public static class ReadSet {
+        private final long[] seen = new long[STRIPES];
+        private int[] read = new int[16];
+        private int numRead;
+        private long epoch;
+
+        private ReadSet() {
+            Arrays.fill(seen, -1);
+        }
+
+        private void add(int stripe, long stamp) {
+            if (numRead == read.length)
+                read = Arrays.copyOf(read, numRead * 2);
+            read[numRead++] = stripe;
+            seen[stripe] = stamp;
+        }
+    }
+
+    private static int stripeOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % STRIPES;
+    }
+
+    /** @return an empty read set that starts at the current epoch */
+    public ReadSet newReadSet() {
+        ReadSet rs = new ReadSet();
+        rs.epoch = epoch.get();
+        return rs;
+    }
+
+    /**
+     * @return the stamp of pid, to pass to {@link #read} once the committed
+     *     image of pid has been copied. Waits for a commit of the stripe of
+     *     pid that is in progress.
+     */
+    public long stamp(PageId pid) {
+        int stripe = stripeOf(pid);
+        long s = stamps.get(stripe);
+        if ((s & IN_PROGRESS) == 0)
+            return s;
+        // register before checking the stamp again, so that a commit that
+        // ends after the check sees the waiter and wakes it
+        waiters.incrementAndGet(stripe);
+        try {
+            synchronized(monitors[stripe]) {
+                while (((s = stamps.get(stripe)) & IN_PROGRESS) != 0) {
+                    try {
+                        monitors[stripe].wait();
+                    } catch (InterruptedException e) {}
+                }
+            }
+        } finally {
+            waiters.decrementAndGet(stripe);
+        }
+        return s;
+    }
+
+    /**
+     * Add a page whose committed image was copied after its stamp was taken
+     * to rs, and check that everything rs has read is still committed.
+     *
+     * @throws TransactionAbortedException if a commit has changed the page
+     *     or a page read before
+     */
+    public void read(ReadSet rs, PageId pid, long stamp) throws TransactionAbortedException {
+        int stripe = stripeOf(pid);
+        if (stamps.get(stripe) != stamp)
+            throw new TransactionAbortedException();
+        synchronized(rs) {
+            if (rs.seen[stripe] == -1)
+                rs.add(stripe, stamp);
+            else if (rs.seen[stripe] != stamp)
+                throw new TransactionAbortedException();
+            long e = epoch.get();
+            if (e == rs.epoch)
+                return;
+            for (int i = 0; i < rs.numRead; i++) {
+                if (stamps.get(rs.read[i]) != rs.seen[rs.read[i]])
+                    throw new TransactionAbortedException();
+            }
+            rs.epoch = e;
+        }
+    }
+
+    /**
+     * Register a commit of the specified pages in their stamps. Must be
+     * called before their committed images change, and be followed by
+     * {@link #endCommit} once they have.
+     *
+     * @return the stripes of the pages
+     */
+    public int[] beginCommit(Collection<Page> pages) {
+        BitSet stripes = new BitSet(STRIPES);
+        for (Page p : pages)
+            stripes.set(stripeOf(p.getId()));
+        int[] marked = stripes.stream().toArray();
+        for (int stripe : marked)
+            stamps.incrementAndGet(stripe);
+        epoch.incrementAndGet();
+        return marked;
+    }
+
+    /** End a commit started by {@link #beginCommit} */
+    public void endCommit(int[] stripes) {
+        for (int stripe : stripes) {
+            long s = stamps.addAndGet(stripe, COMPLETED - 1);
+            if ((s & IN_PROGRESS) == 0 && waiters.get(stripe) > 0) {
+                synchronized(monitors[stripe]) {
+                    monitors[stripe].notifyAll();
+                }
+            }
+        }
+    }
+}
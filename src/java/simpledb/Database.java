@@ -19,11 +19,31 @@ public class Database {
     private final BufferPool _bufferpool;
 
     private final static String LOGFILENAME = "log";
+    /** System property naming the ReplacementPolicy.Kind of the buffer pool */
+    private final static String POLICY_PROPERTY = "simpledb.ReplacementPolicy";
+    /** System property that makes the buffer pool keep pages in off-heap frames */
+    private final static String OFF_HEAP_PROPERTY = "simpledb.OffHeapFrames";
+    /** System property giving the read-ahead window of the buffer pool, in pages */
+    private final static String READ_AHEAD_PROPERTY = "simpledb.ReadAhead";
+    /** System property naming the LockManager.DeadlockPolicy of the buffer pool */
+    private final static String DEADLOCK_POLICY_PROPERTY = "simpledb.DeadlockPolicy";
+    /** System property that makes read-only transactions read snapshots */
+    private final static String MULTI_VERSION_PROPERTY = "simpledb.MultiVersion";
+    /**
+     * System property naming the file the buffer pool saves the ids of its
+     * pages to at shutdown, and loads them from at startup
+     */
+    private final static String WARM_RESTART_PROPERTY = "simpledb.WarmRestartFile";
     private final LogFile _logfile;
 
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES, replacementPolicy(),
+                Boolean.getBoolean(OFF_HEAP_PROPERTY));
+        _bufferpool.setReadAhead(Integer.getInteger(READ_AHEAD_PROPERTY,
+                BufferPool.DEFAULT_READ_AHEAD));
+        _bufferpool.setDeadlockPolicy(deadlockPolicy());
+        _bufferpool.setMultiVersion(Boolean.getBoolean(MULTI_VERSION_PROPERTY));
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -35,6 +55,14 @@ public class Database {
         // startControllerThread();
     }
 
+    private static ReplacementPolicy.Kind replacementPolicy() {
+        return ReplacementPolicy.Kind.valueOf(System.getProperty(POLICY_PROPERTY, "LRU"));
+    }
+
+    private static LockManager.DeadlockPolicy deadlockPolicy() {
+        return LockManager.DeadlockPolicy.valueOf(System.getProperty(DEADLOCK_POLICY_PROPERTY, "DETECT"));
+    }
+
     /** Return the log file of the static Database instance */
     public static LogFile getLogFile() {
         return _instance.get()._logfile;
@@ -45,6 +73,15 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Return the file the buffer pool page ids are kept in between runs, or
+     * null if warm restart is not enabled
+     */
+    public static File getWarmRestartFile() {
+        String name = System.getProperty(WARM_RESTART_PROPERTY);
+        return name == null ? null : new File(name);
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -52,14 +89,36 @@ public class Database {
 
     /**
      * Method used for testing -- create a new instance of the buffer pool and
-     * return it
+     * return it. It uses the replacement policy the constructor does.
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, replacementPolicy());
+    }
+
+    /**
+     * Replace the buffer pool of the static Database instance with a new one
+     * of the specified size that uses the specified replacement policy
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policyKind) {
+        return resetBufferPool(pages, policyKind, Boolean.getBoolean(OFF_HEAP_PROPERTY));
+    }
+
+    /**
+     * Replace the buffer pool of the static Database instance with a new one
+     * of the specified size and replacement policy, that keeps its pages in
+     * off-heap frames if offHeapFrames is set
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policyKind,
+            boolean offHeapFrames) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            BufferPool bp = new BufferPool(pages, policyKind, offHeapFrames);
+            bp.setReadAhead(Integer.getInteger(READ_AHEAD_PROPERTY, BufferPool.DEFAULT_READ_AHEAD));
+            bp.setDeadlockPolicy(deadlockPolicy());
+            bp.setMultiVersion(Boolean.getBoolean(MULTI_VERSION_PROPERTY));
+            bufferPoolF.set(_instance.get(), bp);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -74,8 +133,9 @@ public class Database {
     }
 
     // reset the database, used for unit tests only.
+    // The files of the tables in the old catalog are released.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._catalog.clear();
     }
 
 }
@@ -19,6 +19,17 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Construct the specified page from its on-disk representation, without
+     * doing any I/O. Used by the BufferPool to rebuild pages whose bytes it
+     * keeps outside of the Java heap.
+     *
+     * @param id the id of the page
+     * @param data the page data, as returned by {@link Page#getPageData}
+     * @throws IOException if the data cannot be parsed
+     */
+    public Page decodePage(PageId id, byte[] data) throws IOException;
+
     /**
      * Push the specified page to disk.
      *
@@ -28,6 +39,15 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push the specified pages, which have consecutive page numbers in
+     * increasing order, to disk with a single write.
+     *
+     * @param pages the pages to write
+     * @throws IOException if the write fails
+     */
+    public void writePages(List<Page> pages) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -68,6 +88,17 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over all the tuples stored in this DbFile, like
+     * {@link #iterator(TransactionId)}. If coldScan is set, the pages read by
+     * the iterator are fetched with the cold scan hint of
+     * {@link BufferPool#getPage(TransactionId, PageId, Permissions, boolean)},
+     * so a large scan does not evict the working set of the buffer pool.
+     *
+     * @return an iterator over all the tuples stored in this DbFile.
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean coldScan);
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -88,4 +119,19 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Returns the size in bytes of the pages of this DbFile.
+     * @see BufferPool#getPageSize()
+     */
+    public int getPageSize();
+
+    /**
+     * Releases the open file of this DbFile. The Catalog calls this when it
+     * drops the table; a DbFile that is used again afterwards reopens its
+     * file.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException;
 }
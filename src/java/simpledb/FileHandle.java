@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileHandle keeps one FileChannel open on the file backing a DbFile and
+ * reads and writes it with positional I/O. Positional reads and writes do
+ * not move a shared file pointer, so concurrent callers neither reopen the
+ * file nor serialize on it.
+ * <p>
+ * The channel is opened on first use. If it is closed because another
+ * thread was interrupted in the middle of an I/O call, it is reopened.
+ */
+public class FileHandle {
+
+    private final File file;
+    private FileChannel channel;
+    /** serializes gathering writes, which move the channel position */
+    private final Object positionLock = new Object();
+
+    /**
+     * @param file the file to read and write
+     */
+    public FileHandle(File file) {
+        this.file = file;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        return channel;
+    }
+
+    /**
+     * Read data.length bytes starting at the specified position, or as many
+     * as there are before the end of the file.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     *   end of the file
+     */
+    public int read(long position, byte[] data) throws IOException {
+        try {
+            return readFully(position, data);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            return readFully(position, data);
+        }
+    }
+
+    private int readFully(long position, byte[] data) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0)
+                break;
+        }
+        return buf.position() == 0 && data.length > 0 ? -1 : buf.position();
+    }
+
+    /**
+     * Write all of data starting at the specified position, extending the
+     * file if necessary.
+     */
+    public void write(long position, byte[] data) throws IOException {
+        try {
+            writeFully(position, data);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            writeFully(position, data);
+        }
+    }
+
+    private void writeFully(long position, byte[] data) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining())
+            ch.write(buf, position + buf.position());
+    }
+
+    /**
+     * Write the specified buffers one after the other, starting at the
+     * specified position, with a single gathering write where possible.
+     */
+    public void write(long position, byte[][] data) throws IOException {
+        try {
+            writeFully(position, data);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            writeFully(position, data);
+        }
+    }
+
+    private void writeFully(long position, byte[][] data) throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[data.length];
+        long remaining = 0;
+        for (int i = 0; i < data.length; i++) {
+            bufs[i] = ByteBuffer.wrap(data[i]);
+            remaining += data[i].length;
+        }
+        // gathering writes go through the channel position, which positional
+        // reads and writes do not use
+        synchronized(positionLock) {
+            FileChannel ch = channel();
+            ch.position(position);
+            while (remaining > 0)
+                remaining -= ch.write(bufs);
+        }
+    }
+
+    /**
+     * Map the first size bytes of the file into memory, read-only. The
+     * mapping shares the operating system's page cache, so it reflects
+     * later writes through this or any other handle.
+     */
+    public MappedByteBuffer map(long size) throws IOException {
+        return channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        return channel().size();
+    }
+
+    /** Close the channel; it is reopened by the next call */
+    public synchronized void close() throws IOException {
+        if (channel != null)
+            channel.close();
+        channel = null;
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * FrameArena is a fixed number of page-sized frames preallocated in a single
+ * direct ByteBuffer, i.e. outside of the Java heap. The BufferPool keeps the
+ * bytes of cached pages here when it runs with off-heap frames, so that the
+ * garbage collector only sees the few pages that are currently decoded.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy.Kind, int, boolean)
+ */
+public class FrameArena {
+
+    private final ByteBuffer buffer;
+    private final int frameSize;
+    private final int numFrames;
+    private final ArrayDeque<Integer> freeFrames;
+
+    /**
+     * @param numFrames the number of frames to allocate
+     * @param frameSize the size of each frame in bytes
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.numFrames = numFrames;
+        this.frameSize = frameSize;
+        this.buffer = ByteBuffer.allocateDirect(numFrames * frameSize);
+        this.freeFrames = new ArrayDeque<Integer>(Math.max(numFrames, 1));
+        for (int i = 0; i < numFrames; i++)
+            freeFrames.add(i);
+    }
+
+    /** @return the index of a free frame, or -1 if all frames are in use */
+    public synchronized int allocate() {
+        Integer frame = freeFrames.poll();
+        return frame == null ? -1 : frame;
+    }
+
+    /** Return the specified frame to the arena */
+    public synchronized void free(int frame) {
+        freeFrames.add(frame);
+    }
+
+    /**
+     * Copy data into the specified frame. Data shorter than a frame leaves the
+     * rest of the frame zeroed.
+     */
+    public void write(int frame, byte[] data) {
+        write(frame, data, 0, data.length);
+    }
+
+    /**
+     * Copy length bytes of data starting at offset into the specified frame,
+     * zeroing the rest of the frame. Pages larger than a frame are stored one
+     * frame-sized piece at a time.
+     */
+    public synchronized void write(int frame, byte[] data, int offset, int length) {
+        if (length > frameSize)
+            throw new IllegalArgumentException("page larger than a frame");
+        ByteBuffer b = buffer.duplicate();
+        b.position(frame * frameSize);
+        b.put(data, offset, length);
+        for (int i = length; i < frameSize; i++)
+            b.put((byte) 0);
+    }
+
+    /** @return a copy of the contents of the specified frame */
+    public byte[] read(int frame) {
+        byte[] data = new byte[frameSize];
+        read(frame, data, 0, frameSize);
+        return data;
+    }
+
+    /** Copy the first length bytes of the specified frame into data at offset */
+    public synchronized void read(int frame, byte[] data, int offset, int length) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(frame * frameSize);
+        b.get(data, offset, length);
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the number of frames not in use */
+    public synchronized int getNumFreeFrames() {
+        return freeFrames.size();
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile are known to be full, so
+ * that inserts can go straight to a page with room instead of locking and
+ * reading every page of the file.
+ * <p>
+ * The map is only a hint: a page it reports as having room is checked under
+ * its page lock before a tuple is inserted, and is marked full if it turns
+ * out not to be. It is kept in memory and built on first use from the slot
+ * headers of the pages on disk, which are read directly from the file
+ * without going through the buffer pool. Pages that are added to the file
+ * later, or freed by a delete, are assumed to have room. A page filled by
+ * a transaction that aborts is marked again when the buffer pool restores
+ * it.
+ *
+ * @see HeapFile#pageRestored
+ */
+public class FreeSpaceMap {
+
+    private final FileHandle handle;
+    private final TupleDesc td;
+    private final int pageSize;
+    private final BitSet full;
+    /** pages freed by a delete before the map was built */
+    private BitSet freed;
+    private boolean built;
+
+    /**
+     * @param handle the file of the HeapFile
+     * @param td the tuple descriptor of the HeapFile
+     * @param pageSize the page size of the HeapFile
+     */
+    public FreeSpaceMap(FileHandle handle, TupleDesc td, int pageSize) {
+        this.handle = handle;
+        this.td = td;
+        this.pageSize = pageSize;
+        this.full = new BitSet();
+        this.freed = new BitSet();
+        this.built = false;
+    }
+
+    /**
+     * @return the first page at or after from and before numPages that may
+     *   have an empty slot, or -1 if there is none
+     */
+    public synchronized int nextCandidate(int from, int numPages) throws IOException {
+        if (!built)
+            build(numPages);
+        int pgNo = full.nextClearBit(from);
+        return pgNo < numPages ? pgNo : -1;
+    }
+
+    /** Record whether the specified page is full */
+    public synchronized void setFull(int pgNo, boolean isFull) {
+        full.set(pgNo, isFull);
+        if (!built && !isFull)
+            freed.set(pgNo);
+    }
+
+    private void build(int numPages) throws IOException {
+        int numSlots = (pageSize * 8) / (td.getSize() * 8 + 1);
+        byte[] header = new byte[(numSlots + 7) / 8];
+        for (int pgNo = 0; pgNo < numPages; pgNo++) {
+            if (freed.get(pgNo))
+                continue;
+            if (handle.read((long) pgNo * pageSize, header) < header.length)
+                break;
+            if (isFull(header, numSlots))
+                full.set(pgNo);
+        }
+        freed = null;
+        built = true;
+    }
+
+    private static boolean isFull(byte[] header, int numSlots) {
+        for (int i = 0; i < numSlots; i++)
+            if ((header[i >> 3] & (1 << (i & 7))) == 0)
+                return false;
+        return true;
+    }
+}
@@ -24,11 +24,31 @@ public class HeapFile implements DbFile {
      */
 	private File file;
 	private TupleDesc td;
+	private final int pageSize;
+	private final FileHandle handle;
+	private final FreeSpaceMap freeSpace;
 	
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages are
+     * pageSize bytes long. Tables that are mostly scanned read fewer, larger
+     * pages with a page size of 32 or 64KB.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param pageSize the size of the pages of the file in bytes
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize) {
         // some code goes here
     	this.file = f;
     	this.td = td;
+    	this.pageSize = pageSize;
+    	this.handle = new FileHandle(f);
+    	this.freeSpace = new FreeSpaceMap(handle, td, pageSize);
     }
 
     /**
@@ -65,33 +85,53 @@ public class HeapFile implements DbFile {
     	return td;
     }
 
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return the handle this HeapFile reads and writes its file through */
+    protected FileHandle getFileHandle() {
+        return handle;
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        handle.close();
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) throws IllegalArgumentException {
         // some code goes here
-        byte[] data = HeapPage.createEmptyPageData();
+        byte[] data = HeapPage.createEmptyPageData(pageSize);
         try {
-            DataInputStream dis = new DataInputStream(new FileInputStream(file));
-            dis.skipBytes(pid.pageNumber() * BufferPool.getPageSize());
-            dis.read(data, 0, BufferPool.getPageSize());
-            dis.close();
-            return new HeapPage((HeapPageId)pid, data);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            // a page past the end of the file reads as an empty page
+            handle.read((long) pid.pageNumber() * pageSize, data);
+            return decodePage(pid, data);
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    // see DbFile.java for javadocs
+    public Page decodePage(PageId pid, byte[] data) throws IOException {
+        return new HeapPage((HeapPageId)pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        DataOutputStream dos = new DataOutputStream(new FileOutputStream(file));
-        RandomAccessFile f = new RandomAccessFile(file, "rw");
-        f.seek(page.getId().pageNumber() * BufferPool.getPageSize());
-        f.write(page.getPageData(), 0, BufferPool.getPageSize());
-        f.close();
+        handle.write((long) page.getId().pageNumber() * pageSize, page.getPageData());
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        byte[][] data = new byte[pages.size()][];
+        for (int i = 0; i < data.length; i++)
+            data[i] = pages.get(i).getPageData();
+        handle.write((long) pages.get(0).getId().pageNumber() * pageSize, data);
     }
 
     /**
@@ -99,7 +139,7 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int)Math.floor(1.0 * file.length() / BufferPool.getPageSize());
+        return (int)Math.floor(1.0 * file.length() / pageSize);
     }
 
     // see DbFile.java for javadocs
@@ -108,22 +148,35 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-        for (int i = 0; i < numPages(); i++) {
+        // only lock the pages the free space map says may have room
+        for (int i = freeSpace.nextCandidate(0, numPages()); i >= 0;
+                i = freeSpace.nextCandidate(i + 1, numPages())) {
             HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
             if (p.getNumEmptySlots() > 0) {
                 p.insertTuple(t);
                 p.markDirty(true, tid);
+                freeSpace.setFull(i, p.getNumEmptySlots() == 0);
                 dirtyPagesArr.add(p);
                 return dirtyPagesArr;
             }
+            freeSpace.setFull(i, true);
         }
-        HeapPage p = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
+        HeapPage p = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData(pageSize));
         p.insertTuple(t);
         writePage(p);
+        freeSpace.setFull(p.getId().pageNumber(), p.getNumEmptySlots() == 0);
         dirtyPagesArr.add(p);
         return dirtyPagesArr;
     }
 
+    /**
+     * Update the free space map for a page the BufferPool has restored to
+     * its before image because the transaction that changed it aborted
+     */
+    void pageRestored(HeapPage p) {
+        freeSpace.setFull(p.getId().pageNumber(), p.getNumEmptySlots() == 0);
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -133,6 +186,7 @@ public class HeapFile implements DbFile {
         HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         p.deleteTuple(t);
         p.markDirty(true, tid);
+        freeSpace.setFull(p.getId().pageNumber(), false);
         dirtyPagesArr.add(p);
         return dirtyPagesArr;
     }
@@ -143,69 +197,69 @@ public class HeapFile implements DbFile {
         public HeapPage page;
         private int pageCnt;
         private Iterator<Tuple> it;
+        private final boolean coldScan;
+        private final ReadAhead readAhead;
 
         public HeapFileIterator(TransactionId tid) {
+            this(tid, false);
+        }
+
+        public HeapFileIterator(TransactionId tid, boolean coldScan) {
             this.tid = tid;
+            this.coldScan = coldScan;
+            this.readAhead = new ReadAhead(new ReadAhead.Chain() {
+                public PageId next(Page p) {
+                    int pgNo = p.getId().pageNumber() + 1;
+                    return pgNo < numPages() ? new HeapPageId(getId(), pgNo) : null;
+                }
+            }, coldScan);
         }
         
-        public void open() throws DbException {
+        public void open() throws DbException, TransactionAbortedException {
             this.pageCnt = 0;
-            try {
-                page = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pageCnt++), Permissions.READ_ONLY);
-            } catch(TransactionAbortedException e) {
-                e.printStackTrace();
-            }
+            readAhead.reset();
+            if (numPages() == 0)
+                return;
+            pinNext();
+        }
+
+        /** Unpin the current page, if any, and pin the next one */
+        private void pinNext() throws DbException, TransactionAbortedException {
+            unpin();
+            page = (HeapPage)Database.getBufferPool().pinPage(tid, new HeapPageId(getId(), pageCnt++), Permissions.READ_ONLY, coldScan);
+            readAhead.visited(page);
             it = page.iterator();
         }
 
-        public boolean hasNext() throws DbException {
-            if (page == null || it == null)
-                return false;
-            if (!it.hasNext()) {
-                try {
-                    for (int i = pageCnt; i < numPages(); i++)
-                        if (((HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_ONLY)).iterator().hasNext())
-                            return true;
-                } catch(TransactionAbortedException e) {
-                    e.printStackTrace();
-                }
+        private void unpin() {
+            if (page != null)
+                Database.getBufferPool().unpinPage(tid, page.getId());
+            page = null;
+            it = null;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (it == null)
                 return false;
-            }
-            return true;
+            while (!it.hasNext() && pageCnt < numPages())
+                pinNext();
+            return it != null && it.hasNext();
         }
 
-        public Tuple next() throws DbException {
+        public Tuple next() throws DbException, TransactionAbortedException {
             if (!hasNext())
                 throw new NoSuchElementException();
-            while (hasNext() && !it.hasNext()) {
-                try {
-                    page = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pageCnt++), Permissions.READ_ONLY);
-                } catch(TransactionAbortedException e) {
-                    e.printStackTrace();
-                } catch(DbException e) {
-                    e.printStackTrace();
-                }
-                it = page.iterator();
-            }
             return it.next();
         }
 
-        public void rewind() {
-            this.pageCnt = 0;
-            try {
-                page = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pageCnt++), Permissions.READ_ONLY);
-            } catch(TransactionAbortedException e) {
-                e.printStackTrace();
-            } catch(DbException e) {
-                e.printStackTrace();
-            }
-            it = page.iterator();
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
         }
 
         public void close() {
+            unpin();
             this.pageCnt = 0;
-            this.page = null;
-            this.it = null;
         }
     }
 
@@ -215,5 +269,10 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid);
     }
 
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid, boolean coldScan) {
+        return new HeapFileIterator(tid, coldScan);
+    }
+
 }
 
@@ -3,6 +3,8 @@ package simpledb;
 import java.util.*;
 import java.io.*;
 import java.lang.Math;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -19,8 +21,11 @@ public class HeapPage implements Page {
     final byte header[];
     final Tuple tuples[];
     final int numSlots;
+    final int pageSize;
 
     byte[] oldData;
+    /** the data the page was built from, until oldData is needed */
+    private ByteBuffer oldBuffer;
     private final Byte oldDataLock=new Byte((byte)0);
 
     protected volatile boolean dirty = false;
@@ -31,9 +36,10 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and page size is that of the table's {@link DbFile#getPageSize file}.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
@@ -43,28 +49,45 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the remaining bytes of a buffer, as
+     * {@link #HeapPage(HeapPageId, byte[])} does. The tuples are parsed
+     * straight from the buffer, which may be a slice of a memory-mapped file.
+     * The page keeps a reference to the buffer and only copies it if its
+     * before image is requested before {@link #setBeforeImage} is called.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = Database.getCatalog().getDatabaseFile(id.getTableId()).getPageSize();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        ByteBuffer buf = data.duplicate();
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        try {
+            buf.get(header);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("page data too short for header");
+        }
         
         tuples = new Tuple[numSlots];
         try{
             // allocate and read the actual records of this page
             for (int i=0; i<tuples.length; i++) {
-                tuples[i] = readNextTuple(dis, i);
+                tuples[i] = readNextTuple(buf, i);
             }
         } catch(NoSuchElementException e){
             e.printStackTrace();
         }
-        dis.close();
 
-        setBeforeImage();
+        synchronized(oldDataLock)
+        {
+        oldBuffer = data.duplicate();
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -72,7 +95,7 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        return (int)Math.floor((1.0 * BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1));
+        return (int)Math.floor((1.0 * pageSize * 8) / (td.getSize() * 8 + 1));
     }
 
     /**
@@ -93,6 +116,11 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
+                if (oldData == null) {
+                    oldData = new byte[oldBuffer.remaining()];
+                    oldBuffer.duplicate().get(oldData);
+                    oldBuffer = null;
+                }
                 oldDataRef = oldData;
             }
             return new HeapPage(pid,oldDataRef);
@@ -108,6 +136,7 @@ public class HeapPage implements Page {
         synchronized(oldDataLock)
         {
         oldData = getPageData().clone();
+        oldBuffer = null;
         }
     }
 
@@ -122,17 +151,13 @@ public class HeapPage implements Page {
     /**
      * Suck up tuples from the source file.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+    private Tuple readNextTuple(ByteBuffer buf, int slotId) throws NoSuchElementException {
         // if associated bit is not set, read forward to the next tuple, and
         // return null.
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+            if (buf.remaining() < td.getSize())
+                throw new NoSuchElementException("error reading empty tuple");
+            buf.position(buf.position() + td.getSize());
             return null;
         }
 
@@ -142,7 +167,7 @@ public class HeapPage implements Page {
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(buf);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
@@ -165,7 +190,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
+        int len = pageSize;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -207,7 +232,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = pageSize - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -234,8 +259,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Generate a byte array corresponding to an empty HeapPage of a file
+     * with the specified page size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
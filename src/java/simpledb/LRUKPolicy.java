@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRUKPolicy implements the LRU-K algorithm of O'Neil, O'Neil and Weikum.
+ * The victim is the page whose K-th most recent reference is the oldest;
+ * pages referenced fewer than K times go first, in LRU order. Pages touched
+ * once by a scan are therefore evicted before pages that are probed
+ * repeatedly, such as the internal pages of a B+ tree.
+ * <p>
+ * Time is a logical clock that ticks once per access. Back-to-back accesses
+ * to the same page (e.g. an iterator fetching the page it is already on)
+ * are treated as one correlated reference, and the reference history of
+ * recently evicted pages is retained so that a page that comes back soon is
+ * not treated as brand new.
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final int retainedHistory;
+    private long clock;
+    /** counts down from 0 for pages loaded by cold scans */
+    private long scanClock;
+    private PageId lastAccessed;
+
+    /** history.get(pid)[i] is the time of the (i+1)-th most recent reference, 0 if none */
+    private final HashMap<PageId, long[]> history;
+    /** history of pages that are no longer resident, oldest first */
+    private final LinkedHashMap<PageId, long[]> retained;
+    /** resident pages ordered from the best victim to the worst */
+    private final TreeSet<PageId> resident;
+
+    /**
+     * @param numPages the capacity of the buffer pool the policy serves; it
+     *   also bounds the number of evicted pages whose history is retained
+     * @param k the number of references to look back
+     */
+    public LRUKPolicy(int numPages, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+        this.retainedHistory = Math.max(numPages, 1);
+        this.clock = 0;
+        this.scanClock = 0;
+        this.history = new HashMap<PageId, long[]>();
+        this.retained = new LinkedHashMap<PageId, long[]>();
+        this.resident = new TreeSet<PageId>(new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                long[] ha = history.get(a);
+                long[] hb = history.get(b);
+                int c = Long.compare(ha[k - 1], hb[k - 1]);
+                if (c != 0)
+                    return c;
+                // the most recent reference time is unique per page
+                return Long.compare(ha[0], hb[0]);
+            }
+        });
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        clock++;
+        long[] h = history.get(pid);
+        if (h != null) {
+            resident.remove(pid);
+            if (h[0] < 0) // only seen by a cold scan so far
+                Arrays.fill(h, 0);
+        }
+        else {
+            h = retained.remove(pid);
+            if (h == null)
+                h = new long[k];
+            history.put(pid, h);
+        }
+        if (!pid.equals(lastAccessed)) {
+            System.arraycopy(h, 0, h, 1, k - 1);
+        }
+        h[0] = clock;
+        lastAccessed = pid;
+        resident.add(pid);
+    }
+
+    public synchronized void pageScanned(PageId pid) {
+        if (history.containsKey(pid))
+            return;
+        // older than any real reference, the most recently scanned page first
+        long[] h = new long[k];
+        h[0] = --scanClock;
+        history.put(pid, h);
+        resident.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        long[] h = history.get(pid);
+        if (h == null)
+            return;
+        resident.remove(pid);
+        history.remove(pid);
+        if (h[0] < 0) // only seen by a cold scan; nothing worth retaining
+            return;
+        retained.put(pid, h);
+        if (retained.size() > retainedHistory) {
+            Iterator<PageId> it = retained.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        if (pid.equals(lastAccessed))
+            lastAccessed = null;
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        for (PageId pid : resident)
+            if (evictable.canEvict(pid))
+                return pid;
+        return null;
+    }
+
+    public synchronized void clear() {
+        history.clear();
+        retained.clear();
+        resident.clear();
+        lastAccessed = null;
+    }
+}
@@ -0,0 +1,36 @@
+package simpledb;
+
+/**
+ * LRUPolicy evicts the least recently used clean page. This is the default
+ * policy of the BufferPool.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+
+    /** Least recently used page at the head */
+    private final PageList lru;
+
+    public LRUPolicy() {
+        lru = new PageList();
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        lru.addLast(pid);
+    }
+
+    public synchronized void pageScanned(PageId pid) {
+        if (!lru.contains(pid))
+            lru.addFirst(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        lru.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        return lru.firstEvictable(evictable);
+    }
+
+    public synchronized void clear() {
+        lru.clear();
+    }
+}
@@ -0,0 +1,885 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager grants the locks of a BufferPool under strict two-phase
+ * locking. Pages are locked in shared or exclusive mode, and every page lock
+ * is covered by an intention lock on its table. Each locked page or table
+ * has a lock head holding the transactions that have it locked and a FIFO
+ * queue of the requests waiting for it. The head is also the monitor its
+ * waiters wait on, so a release only wakes the waiters of that page or
+ * table, and only when their queue has changed.
+ * <p>
+ * A new request is granted at once only if it is compatible with the
+ * holders and nothing is queued ahead of it, so a stream of readers cannot
+ * starve a writer. A release grants the queue from the front for as long as
+ * the requests are compatible: the lock is handed over to the next writer,
+ * or to a whole run of readers at once, without the waiters competing for
+ * it. A holder that asks for a stronger mode is queued ahead of the other
+ * waiters and is granted as soon as the other holders allow it.
+ * <p>
+ * Once a transaction holds escalationThreshold page locks of one table, its
+ * table lock is escalated to a shared or exclusive lock if that can be
+ * granted without waiting; the page locks the table lock covers are then
+ * released, and no more are taken. A large scan therefore holds one lock
+ * instead of one per page.
+ * <p>
+ * What a request does instead of waiting into a deadlock depends on the
+ * {@link DeadlockPolicy}.
+ * <p>
+ * Every request is counted in the {@link LockStats} of its page and table.
+ */
+public class LockManager {
+
+    /**
+     * Lock modes. Pages are only locked SHARED or EXCLUSIVE; tables are
+     * locked in an intention mode before any of their pages are, or in
+     * SHARED or EXCLUSIVE mode to lock all of their pages at once.
+     */
+    public enum Mode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+        private static final boolean[][] COMPATIBLE = {
+            //  IS     IX     S      SIX    X
+            { true,  true,  true,  true,  false }, // IS
+            { true,  true,  false, false, false }, // IX
+            { true,  false, true,  false, false }, // S
+            { true,  false, false, false, false }, // SIX
+            { false, false, false, false, false }, // X
+        };
+
+        /** the weakest mode at least as strong as both modes */
+        private static final int[][] COMBINED = {
+            { 0, 1, 2, 3, 4 },
+            { 1, 1, 3, 3, 4 },
+            { 2, 3, 2, 3, 4 },
+            { 3, 3, 3, 3, 4 },
+            { 4, 4, 4, 4, 4 },
+        };
+
+        boolean compatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode that grants both this mode and other */
+        Mode combine(Mode other) {
+            return values()[COMBINED[ordinal()][other.ordinal()]];
+        }
+
+        /** @return true if a holder of this mode also holds other */
+        boolean covers(Mode other) {
+            return combine(other) == this;
+        }
+
+        /** @return the mode the table of a page locked in this mode is locked in */
+        Mode intention() {
+            return this == SHARED ? INTENTION_SHARED : INTENTION_EXCLUSIVE;
+        }
+    }
+
+    /**
+     * How deadlocks are handled. WAIT_DIE and WOUND_WAIT never let a cycle
+     * form, by only letting transactions wait for younger ones or only for
+     * older ones respectively; a transaction is older if its TransactionId
+     * was created first.
+     */
+    public enum DeadlockPolicy {
+        /** wait, and abort the youngest transaction of a cycle in the waits-for graph */
+        DETECT,
+        /** wait for younger transactions, abort instead of waiting for an older one */
+        WAIT_DIE,
+        /**
+         * abort the younger transactions a request has to wait for, then
+         * wait; a wounded transaction aborts at its next lock request
+         */
+        WOUND_WAIT,
+        /** abort a request that has waited longer than the lock timeout */
+        TIMEOUT
+    }
+
+    /** Default time a request waits before it aborts under DeadlockPolicy.TIMEOUT, in ms */
+    public static final long DEFAULT_LOCK_TIMEOUT = 1000;
+
+    /** Default number of page locks of one table after which a transaction's table lock is escalated */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** The lock key of a whole table */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId;
+        }
+
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** A request waiting in the queue of a page or table */
+    private static class Request {
+        final TransactionId tid;
+        final Mode mode;
+        final boolean upgrade;
+        boolean granted;
+
+        Request(TransactionId tid, Mode mode, boolean upgrade) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+    }
+
+    /** The holders and waiters of one page or table */
+    private static class LockHead {
+        final HashMap<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>(4);
+        final LinkedList<Request> queue = new LinkedList<Request>();
+        /** set when the head is removed from the table; requests must look it up again */
+        boolean retired;
+        /** incremented whenever a waiter may have to wait for more transactions */
+        long version;
+    }
+
+    /** The locks one transaction holds */
+    private static class HeldLocks {
+        final HashMap<PageId, Mode> pages = new HashMap<PageId, Mode>();
+        final HashMap<Integer, Mode> tables = new HashMap<Integer, Mode>();
+        /** the number of pages, and of exclusively locked pages, locked in each table */
+        final HashMap<Integer, int[]> counts = new HashMap<Integer, int[]>();
+
+        synchronized void page(PageId pid, Mode mode) {
+            Mode old = pages.put(pid, mode);
+            int[] n = counts.get(pid.getTableId());
+            if (n == null) {
+                n = new int[2];
+                counts.put(pid.getTableId(), n);
+            }
+            if (old == null)
+                n[0]++;
+            if (mode == Mode.EXCLUSIVE && old != Mode.EXCLUSIVE)
+                n[1]++;
+        }
+
+        synchronized Mode removePage(PageId pid) {
+            Mode old = pages.remove(pid);
+            int[] n = counts.get(pid.getTableId());
+            if (old != null && n != null) {
+                n[0]--;
+                if (old == Mode.EXCLUSIVE)
+                    n[1]--;
+            }
+            return old;
+        }
+
+        synchronized Mode table(int tableId) {
+            return tables.get(tableId);
+        }
+
+        synchronized int[] counts(int tableId) {
+            int[] n = counts.get(tableId);
+            return n == null ? new int[2] : n.clone();
+        }
+
+        /** @return the pages of tableId locked in the specified mode */
+        synchronized ArrayList<PageId> pages(int tableId, Mode mode) {
+            ArrayList<PageId> pids = new ArrayList<PageId>();
+            for (Map.Entry<PageId, Mode> e : pages.entrySet()) {
+                if (e.getKey().getTableId() == tableId && e.getValue() == mode)
+                    pids.add(e.getKey());
+            }
+            return pids;
+        }
+    }
+
+    private final ConcurrentHashMap<Object, LockHead> heads;
+    /** the locks each transaction holds */
+    private final ConcurrentHashMap<TransactionId, HeldLocks> held;
+    private final DeadlockDetector detector;
+    private final LockStats stats;
+    private volatile DeadlockPolicy policy;
+    private volatile long timeout;
+    private volatile int escalationThreshold;
+
+    public LockManager() {
+        this(DeadlockPolicy.DETECT);
+    }
+
+    public LockManager(DeadlockPolicy policy) {
+        this.heads = new ConcurrentHashMap<Object, LockHead>();
+        this.held = new ConcurrentHashMap<TransactionId, HeldLocks>();
+        this.detector = new DeadlockDetector();
+        this.stats = new LockStats();
+        this.policy = policy;
+        this.timeout = DEFAULT_LOCK_TIMEOUT;
+        this.escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    }
+
+    /** Set the policy applied to the requests that start waiting from now on */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /** @return the counters of the locks of this lock manager */
+    public LockStats getStats() {
+        return stats;
+    }
+
+    /** Set how long a request waits under DeadlockPolicy.TIMEOUT, in ms */
+    public void setLockTimeout(long millis) {
+        this.timeout = millis;
+    }
+
+    /**
+     * Set the number of page locks of one table after which a transaction's
+     * table lock is escalated
+     *
+     * @param numPages the threshold, 0 to never escalate
+     */
+    public void setEscalationThreshold(int numPages) {
+        if (numPages < 0)
+            throw new IllegalArgumentException("negative escalation threshold " + numPages);
+        this.escalationThreshold = numPages;
+    }
+
+    private HeldLocks heldBy(TransactionId tid) {
+        HeldLocks h = held.get(tid);
+        if (h == null) {
+            h = new HeldLocks();
+            HeldLocks existing = held.putIfAbsent(tid, h);
+            if (existing != null)
+                h = existing;
+        }
+        return h;
+    }
+
+    /**
+     * Lock pid in the specified mode, SHARED or EXCLUSIVE, on behalf of tid,
+     * waiting until the lock is granted. The table of pid is locked in the
+     * matching intention mode first, unless tid holds a table lock that
+     * already covers the page. A transaction that holds an exclusive lock
+     * on pid also holds it in shared mode.
+     *
+     * @throws TransactionAbortedException if tid has to abort under the
+     *   deadlock policy, or was chosen to abort by another request
+     */
+    public void acquire(TransactionId tid, PageId pid, Mode mode)
+        throws TransactionAbortedException {
+        if (mode != Mode.SHARED && mode != Mode.EXCLUSIVE)
+            throw new IllegalArgumentException("pages are locked SHARED or EXCLUSIVE, not " + mode);
+        if (detector.isVictim(tid))
+            throw new TransactionAbortedException();
+        HeldLocks h = heldBy(tid);
+        int tableId = pid.getTableId();
+        Mode tableMode = h.table(tableId);
+        if (tableMode != null && tableMode.covers(mode))
+            return;
+        if (tableMode == null || !tableMode.covers(mode.intention()))
+            lock(tid, new TableKey(tableId), mode.intention());
+        lock(tid, pid, mode);
+
+        int threshold = escalationThreshold;
+        if (threshold > 0) {
+            int[] n = h.counts(tableId);
+            if (n[0] >= threshold)
+                escalate(tid, tableId, n[1] > 0 ? Mode.EXCLUSIVE : Mode.SHARED);
+        }
+    }
+
+    /** Lock key in the specified mode on behalf of tid, waiting if necessary */
+    private void lock(TransactionId tid, Object key, Mode mode)
+        throws TransactionAbortedException {
+        LockHead head;
+        Request req;
+        int queueLength;
+        while (true) {
+            head = head(key);
+            synchronized(head) {
+                if (head.retired)
+                    continue;
+                req = request(head, tid, mode);
+                queueLength = head.queue.size();
+                break;
+            }
+        }
+        if (req == null) {
+            stats.acquired(pageOf(key), tableOf(key));
+            locked(tid, key, head);
+        }
+        else {
+            stats.waiting(pageOf(key), tableOf(key), queueLength);
+            await(head, req, key);
+        }
+    }
+
+    /** @return the page key locks, or null if it is a table */
+    private static PageId pageOf(Object key) {
+        return key instanceof PageId ? (PageId) key : null;
+    }
+
+    private static int tableOf(Object key) {
+        return key instanceof TableKey ? ((TableKey) key).tableId : ((PageId) key).getTableId();
+    }
+
+    private LockHead head(Object key) {
+        LockHead head = heads.get(key);
+        if (head == null) {
+            head = new LockHead();
+            LockHead existing = heads.putIfAbsent(key, head);
+            if (existing != null)
+                head = existing;
+        }
+        return head;
+    }
+
+    /**
+     * Lock tableId in the specified mode on behalf of tid if that can be
+     * done without waiting, and release the page locks it covers
+     */
+    private void escalate(TransactionId tid, int tableId, Mode mode) {
+        TableKey key = new TableKey(tableId);
+        while (true) {
+            LockHead head = head(key);
+            synchronized(head) {
+                if (head.retired)
+                    continue;
+                Mode current = head.holders.get(tid);
+                Mode wanted = current == null ? mode : current.combine(mode);
+                if ((current == null && !head.queue.isEmpty()) || !grantable(head, tid, wanted))
+                    return;
+                head.holders.put(tid, wanted);
+                locked(tid, key, head);
+                break;
+            }
+        }
+        stats.acquired(null, tableId);
+        HeldLocks h = heldBy(tid);
+        for (Mode covered : new Mode[] { Mode.SHARED, Mode.EXCLUSIVE }) {
+            if (h.table(tableId).covers(covered)) {
+                for (PageId pid : h.pages(tableId, covered)) {
+                    h.removePage(pid);
+                    unlock(tid, pid);
+                }
+            }
+        }
+    }
+
+    /** Record that tid holds key in the mode recorded in head */
+    private void locked(TransactionId tid, Object key, LockHead head) {
+        Mode mode;
+        synchronized(head) {
+            mode = head.holders.get(tid);
+        }
+        HeldLocks h = heldBy(tid);
+        if (key instanceof TableKey) {
+            synchronized(h) {
+                h.tables.put(((TableKey) key).tableId, mode);
+            }
+        }
+        else
+            h.page((PageId) key, mode);
+    }
+
+    /**
+     * Grant tid mode on head at once if it can be, and queue a request for
+     * it otherwise
+     *
+     * @return the queued request, or null if the lock was granted
+     */
+    private Request request(LockHead head, TransactionId tid, Mode mode) {
+        Mode current = head.holders.get(tid);
+        if (current != null && current.covers(mode))
+            return null;
+        boolean upgrade = current != null;
+        Mode wanted = upgrade ? current.combine(mode) : mode;
+        if ((upgrade || head.queue.isEmpty()) && grantable(head, tid, wanted)) {
+            head.holders.put(tid, wanted);
+            return null;
+        }
+
+        Request req = new Request(tid, wanted, upgrade);
+        if (upgrade) {
+            // behind other upgrades, ahead of everything else
+            ListIterator<Request> it = head.queue.listIterator();
+            while (it.hasNext()) {
+                if (!it.next().upgrade) {
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(req);
+            // the waiters behind now also wait for tid
+            head.version++;
+            head.notifyAll();
+        }
+        else
+            head.queue.addLast(req);
+        return req;
+    }
+
+    /**
+     * Wait until req is granted. Every time the queue of head changes, the
+     * waiter applies the deadlock policy to the transactions it now waits
+     * for. That may wake a victim waiting on another page, so it is done
+     * without holding the monitor of head.
+     */
+    private void await(LockHead head, Request req, Object key)
+        throws TransactionAbortedException {
+        DeadlockPolicy policy = this.policy;
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean granted = false;
+        try {
+            while (true) {
+                HashSet<TransactionId> blockers;
+                long version;
+                synchronized(head) {
+                    if (req.granted || detector.isVictim(req.tid))
+                        break;
+                    blockers = blockers(head, req);
+                    version = head.version;
+                }
+                if (mustAbort(policy, req, blockers, head))
+                    break;
+                synchronized(head) {
+                    if (req.granted)
+                        break;
+                    if (head.version == version && !detector.isVictim(req.tid)) {
+                        long wait = 0;
+                        if (policy == DeadlockPolicy.TIMEOUT) {
+                            wait = deadline - System.currentTimeMillis();
+                            if (wait <= 0)
+                                break;
+                        }
+                        try {
+                            head.wait(wait);
+                        } catch (InterruptedException e) {}
+                    }
+                }
+            }
+        } finally {
+            synchronized(head) {
+                granted = req.granted;
+                // counted before the head can retire, so that its page's
+                // counters are not created again after it did
+                stats.waited(pageOf(key), tableOf(key), System.nanoTime() - start, granted);
+                if (!granted) {
+                    detector.clear(req.tid);
+                    head.queue.remove(req);
+                    grant(head);
+                    retireIfUnused(key, head);
+                }
+            }
+        }
+        if (!granted)
+            throw new TransactionAbortedException();
+        // a transaction chosen as a victim after its request was granted
+        // aborts at its next lock request
+        locked(req.tid, key, head);
+    }
+
+    /**
+     * Apply policy to the transaction of req, which waits on head for blockers
+     *
+     * @return true if it has to abort instead of waiting
+     */
+    private boolean mustAbort(DeadlockPolicy policy, Request req,
+            Set<TransactionId> blockers, LockHead head) {
+        TransactionId tid = req.tid;
+        switch (policy) {
+        case DETECT:
+            return detector.waitsFor(req, blockers, head);
+        case WAIT_DIE:
+            for (TransactionId t : blockers) {
+                if (t.getId() < tid.getId())
+                    return true;
+            }
+            break;
+        case WOUND_WAIT:
+            for (TransactionId t : blockers) {
+                if (t.getId() > tid.getId())
+                    detector.wound(t);
+            }
+            break;
+        default:
+            break;
+        }
+        return !detector.waitingOn(req, head);
+    }
+
+    /** @return true if tid can be granted mode given the other holders */
+    private static boolean grantable(LockHead head, TransactionId tid, Mode mode) {
+        for (Map.Entry<TransactionId, Mode> e : head.holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !mode.compatible(e.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the transactions req has to wait for: conflicting holders and requests ahead */
+    private static HashSet<TransactionId> blockers(LockHead head, Request req) {
+        HashSet<TransactionId> tids = new HashSet<TransactionId>();
+        for (Map.Entry<TransactionId, Mode> e : head.holders.entrySet()) {
+            if (!req.mode.compatible(e.getValue()))
+                tids.add(e.getKey());
+        }
+        for (Request r : head.queue) {
+            if (r == req)
+                break;
+            if (!req.mode.compatible(r.mode))
+                tids.add(r.tid);
+        }
+        tids.remove(req.tid);
+        return tids;
+    }
+
+    /**
+     * Grant the queue of head from the front while the requests are compatible
+     *
+     * @return true if any request was granted
+     */
+    private boolean grant(LockHead head) {
+        boolean granted = false;
+        Iterator<Request> it = head.queue.iterator();
+        while (it.hasNext()) {
+            Request r = it.next();
+            if (!grantable(head, r.tid, r.mode))
+                break;
+            it.remove();
+            head.holders.put(r.tid, r.mode);
+            r.granted = true;
+            detector.clear(r.tid);
+            granted = true;
+        }
+        if (granted) {
+            head.version++;
+            head.notifyAll();
+        }
+        return granted;
+    }
+
+    /** Release the lock tid holds on pid, if any */
+    public void release(TransactionId tid, PageId pid) {
+        HeldLocks h = held.get(tid);
+        if (h != null)
+            h.removePage(pid);
+        unlock(tid, pid);
+    }
+
+    /** Release every lock tid holds */
+    public void releaseAll(TransactionId tid) {
+        HeldLocks h = held.remove(tid);
+        if (h != null) {
+            ArrayList<Object> keys = new ArrayList<Object>();
+            synchronized(h) {
+                keys.addAll(h.pages.keySet());
+                for (int tableId : h.tables.keySet())
+                    keys.add(new TableKey(tableId));
+            }
+            for (Object key : keys)
+                unlock(tid, key);
+        }
+        detector.forget(tid);
+    }
+
+    private void unlock(TransactionId tid, Object key) {
+        LockHead head = heads.get(key);
+        if (head == null)
+            return;
+        synchronized(head) {
+            if (head.holders.remove(tid) == null)
+                return;
+            if (!grant(head) && !head.queue.isEmpty()) {
+                // the waiters no longer wait for tid
+                head.version++;
+                head.notifyAll();
+            }
+            retireIfUnused(key, head);
+        }
+    }
+
+    /** Remove head from the lock table if nobody holds or waits for key */
+    private void retireIfUnused(Object key, LockHead head) {
+        if (head.holders.isEmpty() && head.queue.isEmpty()) {
+            head.retired = true;
+            // before a new head for key can count anything
+            if (key instanceof PageId)
+                stats.retired((PageId) key);
+            heads.remove(key, head);
+        }
+    }
+
+    /**
+     * @return true if tid, or any transaction if tid is null, holds key in a
+     *   mode that covers mode
+     */
+    private boolean holds(Object key, TransactionId tid, Mode mode) {
+        LockHead head = heads.get(key);
+        if (head == null)
+            return false;
+        synchronized(head) {
+            if (tid != null) {
+                Mode m = head.holders.get(tid);
+                return m != null && m.covers(mode);
+            }
+            for (Mode m : head.holders.values()) {
+                if (m.covers(mode))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /** Return true if some transaction holds an exclusive lock on pid or its table */
+    public boolean isExclusivelyLocked(PageId pid) {
+        return holds(pid, null, Mode.EXCLUSIVE)
+            || holds(new TableKey(pid.getTableId()), null, Mode.EXCLUSIVE);
+    }
+
+    /** Return true if tid holds a lock on pid, or a table lock that covers it */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        return holds(pid, tid, Mode.SHARED)
+            || holds(new TableKey(pid.getTableId()), tid, Mode.SHARED);
+    }
+
+    /** @return the mode tid holds the lock on the specified table in, or null */
+    public Mode getTableLock(TransactionId tid, int tableId) {
+        HeldLocks h = held.get(tid);
+        return h == null ? null : h.table(tableId);
+    }
+
+    /** @return the number of requests waiting for a lock on pid */
+    public int getQueueLength(PageId pid) {
+        LockHead head = heads.get(pid);
+        if (head == null)
+            return 0;
+        synchronized(head) {
+            return head.queue.size();
+        }
+    }
+
+    /** @return the number of pages and tables that are locked or waited for */
+    public int getNumLockHeads() {
+        return heads.size();
+    }
+
+    /**
+     * @return the transactions each waiting transaction waits for, under
+     *   any deadlock policy. The queue of each page and table is looked at
+     *   separately, so the graph is not a consistent snapshot while locks
+     *   are being granted.
+     */
+    public Map<TransactionId, Set<TransactionId>> getWaitsForGraph() {
+        HashMap<TransactionId, Set<TransactionId>> graph = new HashMap<TransactionId, Set<TransactionId>>();
+        for (LockHead head : heads.values()) {
+            synchronized(head) {
+                for (Request r : head.queue) {
+                    Set<TransactionId> tids = graph.get(r.tid);
+                    if (tids == null) {
+                        tids = new HashSet<TransactionId>();
+                        graph.put(r.tid, tids);
+                    }
+                    tids.addAll(blockers(head, r));
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * @return one line for each waiting request, with the transactions it
+     *   waits for and the page or table it waits on
+     */
+    public String dumpWaitsForGraph() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Object, LockHead> e : heads.entrySet()) {
+            LockHead head = e.getValue();
+            synchronized(head) {
+                for (Request r : head.queue) {
+                    sb.append("transaction ").append(r.tid.getId()).append(" waits for");
+                    for (TransactionId t : blockers(head, r))
+                        sb.append(' ').append(t.getId());
+                    sb.append(" on ").append(describe(e.getKey()))
+                        .append(" (").append(r.mode).append(")\n");
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String describe(Object key) {
+        if (key instanceof TableKey)
+            return key.toString();
+        PageId pid = (PageId) key;
+        return "table " + pid.getTableId() + " page " + pid.pageNumber();
+    }
+
+    /**
+     * The waits-for graph of the transactions that are waiting for a lock,
+     * maintained incrementally: a waiter replaces its edges every time its
+     * queue changes, and they are removed when it is granted or gives up.
+     * Only edges that a waiter did not have before can close a cycle, so a
+     * check only searches the transactions reachable from the new edges.
+     * The youngest transaction of a cycle is aborted to break it.
+     * <p>
+     * Under the other policies only the page each transaction waits on is
+     * recorded, so that it can be woken up if it is wounded.
+     */
+    private static class DeadlockDetector {
+
+        /** the transactions each waiting transaction waits for */
+        private final HashMap<TransactionId, Set<TransactionId>> waitsFor =
+            new HashMap<TransactionId, Set<TransactionId>>();
+        /** the lock head each waiting transaction waits on */
+        private final HashMap<TransactionId, LockHead> waitingOn =
+            new HashMap<TransactionId, LockHead>();
+        /** transactions chosen to break a deadlock that have not completed yet */
+        private final Set<TransactionId> victims =
+            Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+
+        /**
+         * Record that the transaction of req, waiting on head, waits for
+         * blockers. For every cycle that closes, unless the transaction is
+         * the youngest of one, the youngest transaction of the cycle is
+         * marked as a victim and woken up. The new edges may close several
+         * cycles, and they are not searched again, so the search goes on
+         * until none is left.
+         * <p>
+         * blockers were computed before, so req may have been granted since.
+         * Its edges must not be recorded then: they would outlive the wait,
+         * and edges already recorded are not searched again when the
+         * transaction waits for the same transactions later.
+         *
+         * @return true if the transaction has to abort
+         */
+        boolean waitsFor(Request req, Set<TransactionId> blockers, LockHead head) {
+            TransactionId tid = req.tid;
+            ArrayList<LockHead> wake = new ArrayList<LockHead>();
+            synchronized(this) {
+                if (victims.contains(tid))
+                    return true;
+                // grant() sets granted before it clears the edges of req
+                if (req.granted)
+                    return false;
+                Set<TransactionId> old = waitsFor.put(tid, blockers);
+                waitingOn.put(tid, head);
+                ArrayList<TransactionId> added = new ArrayList<TransactionId>();
+                for (TransactionId t : blockers) {
+                    if (old == null || !old.contains(t))
+                        added.add(t);
+                }
+                List<TransactionId> cycle;
+                while ((cycle = pathTo(tid, added)) != null) {
+                    TransactionId victim = tid;
+                    for (TransactionId t : cycle) {
+                        if (t.getId() > victim.getId())
+                            victim = t;
+                    }
+                    victims.add(victim);
+                    if (victim.equals(tid))
+                        return true;
+                    // which breaks every cycle through the victim
+                    waitsFor.remove(victim);
+                    wake.add(waitingOn.get(victim));
+                }
+            }
+            for (LockHead h : wake)
+                wake(h);
+            return false;
+        }
+
+        /**
+         * Record that the transaction of req waits on head, unless req has
+         * been granted since
+         *
+         * @return false if the transaction has been wounded
+         */
+        synchronized boolean waitingOn(Request req, LockHead head) {
+            if (!req.granted)
+                waitingOn.put(req.tid, head);
+            return !victims.contains(req.tid);
+        }
+
+        /** Make tid abort, and wake it up if it is waiting for a lock */
+        void wound(TransactionId tid) {
+            LockHead wake;
+            synchronized(this) {
+                if (!victims.add(tid))
+                    return;
+                wake = waitingOn.get(tid);
+            }
+            wake(wake);
+        }
+
+        private static void wake(LockHead head) {
+            if (head != null) {
+                synchronized(head) {
+                    head.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * @return the transactions on a path from one of from to tid,
+         *   or null if tid is not reachable
+         */
+        private List<TransactionId> pathTo(TransactionId tid, List<TransactionId> from) {
+            HashMap<TransactionId, TransactionId> parent = new HashMap<TransactionId, TransactionId>();
+            ArrayDeque<TransactionId> q = new ArrayDeque<TransactionId>();
+            for (TransactionId t : from) {
+                parent.put(t, t);
+                q.add(t);
+            }
+            while (!q.isEmpty()) {
+                TransactionId t = q.poll();
+                if (t.equals(tid)) {
+                    ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+                    for (TransactionId p = t; ; p = parent.get(p)) {
+                        path.add(p);
+                        if (parent.get(p).equals(p))
+                            return path;
+                    }
+                }
+                Set<TransactionId> next = waitsFor.get(t);
+                if (next == null)
+                    continue;
+                for (TransactionId n : next) {
+                    if (!parent.containsKey(n)) {
+                        parent.put(n, t);
+                        q.add(n);
+                    }
+                }
+            }
+            return null;
+        }
+
+        boolean isVictim(TransactionId tid) {
+            return victims.contains(tid);
+        }
+
+        /** Record that tid no longer waits */
+        synchronized void clear(TransactionId tid) {
+            waitsFor.remove(tid);
+            waitingOn.remove(tid);
+        }
+
+        /** Forget tid, which has completed */
+        synchronized void forget(TransactionId tid) {
+            clear(tid);
+            victims.remove(tid);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * LockStats counts what happens to the locks of a LockManager, per page and
+ * per table: how often they are acquired, how often and how long requests
+ * wait for them, how many waiting requests abort under the deadlock policy,
+ * and how long their queues get. The counters of a table include those of
+ * all its pages as well as those of the table lock itself.
+ * <p>
+ * The counters are striped, so that transactions that lock the same page
+ * at the same time do not contend on them, and cheap enough to be always
+ * on. A page is only counted while the LockManager has a lock head for it.
+ * When the head retires, the counters of the page are dropped, since those
+ * of its table already include them, unless requests waited for it; then
+ * they are kept among the {@link #MAX_RETAINED} most contended pages, and
+ * carried on if the page is locked again. The counters of tables are kept
+ * until {@link #reset}.
+ */
+public class LockStats {
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong(long a, long b) {
+            return Math.max(a, b);
+        }
+    };
+
+    /** The counters of one page or table */
+    private static class Counters {
+        final LongAdder acquisitions = new LongAdder();
+        final LongAdder waits = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final LongAdder aborts = new LongAdder();
+        final LongAccumulator maxQueueLength = new LongAccumulator(MAX, 0);
+
+        Counts get() {
+            return new Counts(acquisitions.sum(), waits.sum(), waitNanos.sum(),
+                    aborts.sum(), (int) maxQueueLength.get());
+        }
+    }
+
+    /** A snapshot of the counters of one page or table */
+    public static class Counts {
+        private final long acquisitions;
+        private final long waits;
+        private final long waitNanos;
+        private final long aborts;
+        private final int maxQueueLength;
+
+        Counts(long acquisitions, long waits, long waitNanos, long aborts, int maxQueueLength) {
+            this.acquisitions = acquisitions;
+            this.waits = waits;
+            this.waitNanos = waitNanos;
+            this.aborts = aborts;
+            this.maxQueueLength = maxQueueLength;
+        }
+
+        /** @return the number of lock requests that were granted */
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        /** @return the number of lock requests that had to wait */
+        public long getWaits() {
+            return waits;
+        }
+
+        /** @return the total time lock requests waited, in ns */
+        public long getWaitTime() {
+            return waitNanos;
+        }
+
+        /** @return the number of waiting requests that aborted under the deadlock policy */
+        public long getDeadlockAborts() {
+            return aborts;
+        }
+
+        /** @return the largest number of requests that waited at the same time */
+        public int getMaxQueueLength() {
+            return maxQueueLength;
+        }
+
+        public String toString() {
+            return "acquisitions=" + acquisitions + " waits=" + waits
+                + " waitTime=" + waitNanos / 1000000 + "ms deadlockAborts=" + aborts
+                + " maxQueueLength=" + maxQueueLength;
+        }
+    }
+
+    private static final Counts NONE = new Counts(0, 0, 0, 0, 0);
+
+    /** The number of pages without lock heads whose counters are kept */
+    public static final int MAX_RETAINED = 1024;
+
+    /** The counters of pages with lock heads */
+    private final ConcurrentHashMap<PageId, Counters> pages = new ConcurrentHashMap<PageId, Counters>();
+    /** The counters of contended pages whose lock heads retired */
+    private final ConcurrentHashMap<PageId, Counters> retained = new ConcurrentHashMap<PageId, Counters>();
+    private final ConcurrentHashMap<Integer, Counters> tables = new ConcurrentHashMap<Integer, Counters>();
+
+    private static <K> Counters countersOf(ConcurrentHashMap<K, Counters> map, K key) {
+        Counters c = map.get(key);
+        if (c == null) {
+            c = new Counters();
+            Counters existing = map.putIfAbsent(key, c);
+            if (existing != null)
+                c = existing;
+        }
+        return c;
+    }
+
+    /** @return the counters of pid, taking them back if they were retained */
+    private Counters countersOf(PageId pid) {
+        Counters c = pages.get(pid);
+        if (c == null) {
+            Counters old = retained.remove(pid);
+            c = old != null ? old : new Counters();
+            Counters existing = pages.putIfAbsent(pid, c);
+            if (existing != null)
+                c = existing;
+        }
+        return c;
+    }
+
+    /**
+     * Count a lock of pid, or of the table tableId itself if pid is null,
+     * that was granted without waiting
+     */
+    void acquired(PageId pid, int tableId) {
+        if (pid != null)
+            countersOf(pid).acquisitions.increment();
+        countersOf(tables, tableId).acquisitions.increment();
+    }
+
+    /** Count a request that started waiting in a queue of queueLength requests */
+    void waiting(PageId pid, int tableId, int queueLength) {
+        if (pid != null) {
+            Counters c = countersOf(pid);
+            c.waits.increment();
+            c.maxQueueLength.accumulate(queueLength);
+        }
+        Counters c = countersOf(tables, tableId);
+        c.waits.increment();
+        c.maxQueueLength.accumulate(queueLength);
+    }
+
+    /** Count a request that stopped waiting after nanos ns, and was granted or aborted */
+    void waited(PageId pid, int tableId, long nanos, boolean granted) {
+        Counters[] cs = { pid == null ? null : countersOf(pid), countersOf(tables, tableId) };
+        for (Counters c : cs) {
+            if (c == null)
+                continue;
+            c.waitNanos.add(nanos);
+            if (granted)
+                c.acquisitions.increment();
+            else
+                c.aborts.increment();
+        }
+    }
+
+    /**
+     * Forget the counters of pid, whose lock head retired, unless requests
+     * waited for it. The LockManager counts nothing for pid until it has a
+     * lock head again.
+     */
+    void retired(PageId pid) {
+        Counters c = pages.remove(pid);
+        if (c == null || c.waits.sum() == 0)
+            return;
+        retained.put(pid, c);
+        if (retained.size() > MAX_RETAINED)
+            evict();
+    }
+
+    /** Drop the retained pages waited for least until MAX_RETAINED are left */
+    private synchronized void evict() {
+        while (retained.size() > MAX_RETAINED) {
+            PageId least = null;
+            long leastNanos = Long.MAX_VALUE;
+            for (Map.Entry<PageId, Counters> e : retained.entrySet()) {
+                long nanos = e.getValue().waitNanos.sum();
+                if (nanos < leastNanos) {
+                    least = e.getKey();
+                    leastNanos = nanos;
+                }
+            }
+            if (least == null)
+                return;
+            retained.remove(least);
+        }
+    }
+
+    /** @return the counters of pid, including those of requests still waiting */
+    public Counts getPageStats(PageId pid) {
+        Counters c = pages.get(pid);
+        if (c == null)
+            c = retained.get(pid);
+        return c == null ? NONE : c.get();
+    }
+
+    /** @return the counters of the specified table and all its pages */
+    public Counts getTableStats(int tableId) {
+        Counters c = tables.get(tableId);
+        return c == null ? NONE : c.get();
+    }
+
+    /**
+     * @return up to n pages that requests have waited longest for in total,
+     *   most contended first; pages nothing has waited for are left out
+     */
+    public List<PageId> getMostContendedPages(int n) {
+        final HashMap<PageId, Counts> counts = new HashMap<PageId, Counts>();
+        for (ConcurrentHashMap<PageId, Counters> map : Arrays.asList(pages, retained)) {
+            for (Map.Entry<PageId, Counters> e : map.entrySet()) {
+                Counts c = e.getValue().get();
+                if (c.getWaits() > 0)
+                    counts.put(e.getKey(), c);
+            }
+        }
+        ArrayList<PageId> pids = new ArrayList<PageId>(counts.keySet());
+        Collections.sort(pids, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                Counts ca = counts.get(a);
+                Counts cb = counts.get(b);
+                int c = Long.compare(cb.getWaitTime(), ca.getWaitTime());
+                return c != 0 ? c : Long.compare(cb.getWaits(), ca.getWaits());
+            }
+        });
+        return pids.size() > n ? new ArrayList<PageId>(pids.subList(0, n)) : pids;
+    }
+
+    /** @return one line with the counters of each of the n most contended pages */
+    public String report(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (PageId pid : getMostContendedPages(n)) {
+            sb.append("table ").append(pid.getTableId()).append(" page ")
+                .append(pid.pageNumber()).append(": ").append(getPageStats(pid)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Forget all counters */
+    public void reset() {
+        pages.clear();
+        retained.clear();
+        tables.clear();
+    }
+}
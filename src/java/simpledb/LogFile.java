@@ -473,12 +473,17 @@ public class LogFile {
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
-        extensive recovery.)
+        extensive recovery.) If warm restart is enabled, the ids of
+        the pages in the buffer pool are saved as well.
+        @see Database#getWarmRestartFile
     */
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
+            File warmFile = Database.getWarmRestartFile();
+            if (warmFile != null)
+                Database.getBufferPool().savePageIds(warmFile);
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -0,0 +1,78 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * MappedHeapFile is a HeapFile for read-mostly tables. It maps its file into
+ * memory with FileChannel.map and builds HeapPages straight from the mapped
+ * region, so reading a page neither makes a system call nor copies the page
+ * into a fresh byte array, and the file's pages stay in the operating
+ * system's page cache rather than being read into the Java heap.
+ * <p>
+ * Writes go through {@link HeapFile#writePage}; the mapping shares the page
+ * cache with the file, so they are visible to later reads. The mapping is
+ * extended when a page past its end is requested. Pages beyond the first
+ * 2GB of the file, which cannot be mapped in one buffer, are read as a
+ * HeapFile would read them.
+ *
+ * @see Catalog#loadSchema
+ */
+public class MappedHeapFile extends HeapFile {
+
+    private MappedByteBuffer mapped;
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this heap
+     *   file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        this(f, td, BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file,
+     * whose pages are pageSize bytes long.
+     */
+    public MappedHeapFile(File f, TupleDesc td, int pageSize) {
+        super(f, td, pageSize);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) throws IllegalArgumentException {
+        try {
+            ByteBuffer region = pageRegion(pid.pageNumber());
+            if (region == null)
+                return super.readPage(pid);
+            return new HeapPage((HeapPageId) pid, region);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not read page " + pid, e);
+        }
+    }
+
+    /**
+     * @return a read-only view of the specified page in the mapping, or null
+     *   if the page cannot be mapped
+     */
+    private synchronized ByteBuffer pageRegion(int pgNo) throws IOException {
+        int pageSize = getPageSize();
+        long start = (long) pgNo * pageSize;
+        long end = start + pageSize;
+        if (end > Integer.MAX_VALUE)
+            return null;
+        if (mapped == null || mapped.capacity() < end) {
+            FileHandle handle = getFileHandle();
+            long size = Math.min(handle.size(), Integer.MAX_VALUE);
+            if (size < end)
+                return null;
+            mapped = handle.map(size);
+        }
+        ByteBuffer b = mapped.asReadOnlyBuffer();
+        b.limit((int) end);
+        b.position((int) start);
+        return b.slice();
+    }
+}
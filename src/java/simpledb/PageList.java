@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * PageList is an ordered set of PageIds used by the replacement policies.
+ * Nodes are doubly linked and indexed by PageId, so appending, moving a page
+ * to the tail and unlinking it are all constant time.
+ * <p>
+ * PageList is not thread safe; callers synchronize on the owning policy.
+ */
+class PageList implements Iterable<PageId> {
+
+    private class Node {
+
+        PageId pageId;
+        Node prev;
+        Node next;
+
+        Node(PageId pageId) {
+            this.pageId = pageId;
+        }
+    }
+
+    private Node head;
+    private Node tail;
+    private final HashMap<PageId, Node> nodeMap;
+
+    public PageList() {
+        head = tail = null;
+        nodeMap = new HashMap<PageId, Node>();
+    }
+
+    /** Append pageId at the tail, moving it there if it is already present. */
+    public void addLast(PageId pageId) {
+        Node n = nodeMap.get(pageId);
+        if (n != null) {
+            if (n == tail)
+                return;
+            unlink(n);
+        }
+        else {
+            n = new Node(pageId);
+            nodeMap.put(pageId, n);
+        }
+        n.prev = tail;
+        if (tail == null)
+            head = n;
+        else
+            tail.next = n;
+        tail = n;
+    }
+
+    /** Insert pageId at the head, moving it there if it is already present. */
+    public void addFirst(PageId pageId) {
+        Node n = nodeMap.get(pageId);
+        if (n != null) {
+            if (n == head)
+                return;
+            unlink(n);
+        }
+        else {
+            n = new Node(pageId);
+            nodeMap.put(pageId, n);
+        }
+        n.next = head;
+        if (head == null)
+            tail = n;
+        else
+            head.prev = n;
+        head = n;
+    }
+
+    /** @return true if pageId was present */
+    public boolean remove(PageId pageId) {
+        Node n = nodeMap.remove(pageId);
+        if (n == null)
+            return false;
+        unlink(n);
+        return true;
+    }
+
+    /** Remove and return the page at the head, or null if the list is empty. */
+    public PageId removeFirst() {
+        if (head == null)
+            return null;
+        PageId pageId = head.pageId;
+        remove(pageId);
+        return pageId;
+    }
+
+    private void unlink(Node n) {
+        if (n.prev == null)
+            head = n.next;
+        else
+            n.prev.next = n.next;
+        if (n.next == null)
+            tail = n.prev;
+        else
+            n.next.prev = n.prev;
+        n.prev = n.next = null;
+    }
+
+    public boolean contains(PageId pageId) {
+        return nodeMap.containsKey(pageId);
+    }
+
+    public int size() {
+        return nodeMap.size();
+    }
+
+    public void clear() {
+        head = tail = null;
+        nodeMap.clear();
+    }
+
+    /**
+     * @return the first page from the head accepted by evictable, or null
+     */
+    public PageId firstEvictable(ReplacementPolicy.Evictable evictable) {
+        for (Node n = head; n != null; n = n.next)
+            if (evictable.canEvict(n.pageId))
+                return n.pageId;
+        return null;
+    }
+
+    /** Iterates from the head to the tail; remove is not supported. */
+    public Iterator<PageId> iterator() {
+        return new Iterator<PageId>() {
+            private Node cur = head;
+
+            public boolean hasNext() {
+                return cur != null;
+            }
+
+            public PageId next() {
+                if (cur == null)
+                    throw new NoSuchElementException();
+                PageId pageId = cur.pageId;
+                cur = cur.next;
+                return pageId;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
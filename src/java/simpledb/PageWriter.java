@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PageWriter is the background writer of a BufferPool. Committing
+ * transactions hand it the pages they dirtied and wait until the pages are
+ * on disk. The writer thread takes all the pages that are queued at once,
+ * which groups the writes of transactions that commit together, sorts them
+ * by file and page number, and writes each run of adjacent pages of a file
+ * with a single call to {@link DbFile#writePages}.
+ */
+public class PageWriter {
+
+    /** The pages of one commit, and whether they have been written */
+    private static class Batch {
+        final Collection<Page> pages;
+        boolean done;
+        IOException error;
+
+        Batch(Collection<Page> pages) {
+            this.pages = pages;
+        }
+
+        synchronized void finish(IOException e) {
+            done = true;
+            error = e;
+            notifyAll();
+        }
+
+        synchronized void await() throws IOException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the pages are being written; the caller has to know
+                    // whether that worked
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (error != null)
+                throw error;
+        }
+    }
+
+    private static final Comparator<Page> FILE_ORDER = new Comparator<Page>() {
+        public int compare(Page a, Page b) {
+            int c = Integer.compare(a.getId().getTableId(), b.getId().getTableId());
+            if (c != 0)
+                return c;
+            return Integer.compare(a.getId().pageNumber(), b.getId().pageNumber());
+        }
+    };
+
+    private final LinkedBlockingQueue<Batch> queue;
+    private final ThreadPoolExecutor thread;
+    private final Runnable drain;
+    private long writes;
+    private long pagesWritten;
+
+    public PageWriter() {
+        this.queue = new LinkedBlockingQueue<Batch>();
+        this.thread = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BufferPool writer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.thread.allowCoreThreadTimeOut(true);
+        this.drain = new Runnable() {
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Write the specified pages to disk, and wait until they are written.
+     * The pages must not be modified until this method returns.
+     *
+     * @throws IOException if any of the pages could not be written
+     */
+    public void write(Collection<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        Batch batch = new Batch(pages);
+        queue.add(batch);
+        thread.execute(drain);
+        batch.await();
+    }
+
+    /** @return the number of writes issued to DbFiles */
+    public synchronized long getWriteCount() {
+        return writes;
+    }
+
+    /** @return the number of pages written */
+    public synchronized long getPageCount() {
+        return pagesWritten;
+    }
+
+    private void drain() {
+        ArrayList<Batch> batches = new ArrayList<Batch>();
+        queue.drainTo(batches);
+        if (batches.isEmpty())
+            return;
+        // the first failure of each batch with a page in a failed run
+        HashMap<Batch, IOException> errors = new HashMap<Batch, IOException>();
+        boolean drained = false;
+        try {
+            IdentityHashMap<Page, Batch> owners = new IdentityHashMap<Page, Batch>();
+            ArrayList<Page> pages = new ArrayList<Page>();
+            for (Batch batch : batches) {
+                for (Page p : batch.pages)
+                    owners.put(p, batch);
+                pages.addAll(batch.pages);
+            }
+            Collections.sort(pages, FILE_ORDER);
+
+            int start = 0;
+            while (start < pages.size()) {
+                int end = start + 1;
+                while (end < pages.size() && adjacent(pages.get(end - 1), pages.get(end)))
+                    end++;
+                List<Page> run = pages.subList(start, end);
+                IOException error = null;
+                try {
+                    DbFile f = Database.getCatalog().getDatabaseFile(run.get(0).getId().getTableId());
+                    if (run.size() == 1)
+                        f.writePage(run.get(0));
+                    else
+                        f.writePages(run);
+                    synchronized(this) {
+                        writes++;
+                        pagesWritten += run.size();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException("could not write pages", e);
+                }
+                if (error != null) {
+                    for (Page p : run) {
+                        Batch batch = owners.get(p);
+                        if (!errors.containsKey(batch))
+                            errors.put(batch, error);
+                    }
+                }
+                start = end;
+            }
+            drained = true;
+        } finally {
+            // committers must not wait forever, whatever went wrong here
+            for (Batch batch : batches) {
+                IOException e = errors.get(batch);
+                if (e == null && !drained)
+                    e = new IOException("the page writer failed");
+                batch.finish(e);
+            }
+        }
+    }
+
+    private static boolean adjacent(Page a, Page b) {
+        return a.getId().getTableId() == b.getId().getTableId()
+            && a.getId().pageNumber() + 1 == b.getId().pageNumber();
+    }
+}
@@ -599,6 +599,7 @@ public class Parser {
     static final int SLEEP_TIME = 5000;
 
     protected void shutdown() {
+        Database.getLogFile().shutdown();
         System.out.println("Bye");
     }
 
@@ -607,6 +608,9 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
+        File warmFile = Database.getWarmRestartFile();
+        if (warmFile != null && warmFile.exists())
+            Database.getBufferPool().loadPageIds(warmFile);
         TableStats.computeStatistics();
 
         String queryFile = null;
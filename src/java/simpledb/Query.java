@@ -25,6 +25,17 @@ public class Query implements Serializable {
         return this.tid;
     }
 
+    /**
+     * Limit the pages this query reads into the buffer pool to the specified
+     * fraction of the pool, so that a large query does not push the pages
+     * of other transactions out.
+     *
+     * @see BufferPool#setTransactionQuota
+     */
+    public void setBufferPoolQuota(double fraction) {
+        Database.getBufferPool().setTransactionQuota(tid, fraction);
+    }
+
     public void setLogicalPlan(LogicalPlan lp) {
         this.logicalPlan = lp;
     }
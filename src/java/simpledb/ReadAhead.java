@@ -0,0 +1,59 @@
+package simpledb;
+
+/**
+ * ReadAhead watches the pages a file iterator visits. Once the iterator has
+ * moved from one page to the page that follows it, the access is considered
+ * sequential and the BufferPool is asked to prefetch the next pages of the
+ * chain in the background, so that they are cached by the time the iterator
+ * gets there.
+ * <p>
+ * A new window of {@link BufferPool#getReadAhead()} pages is requested
+ * whenever less than half of the previous window is left.
+ */
+public class ReadAhead {
+
+    /** Describes the order in which a file iterator visits pages */
+    public interface Chain {
+        /** @return the id of the page visited after p, or null if p is the last one */
+        PageId next(Page p);
+    }
+
+    private final Chain chain;
+    private final boolean coldScan;
+    private PageId expected;
+    private int remaining;
+
+    /**
+     * @param chain the order in which pages are visited
+     * @param coldScan true if the prefetched pages are read by a cold scan
+     */
+    public ReadAhead(Chain chain, boolean coldScan) {
+        this.chain = chain;
+        this.coldScan = coldScan;
+        reset();
+    }
+
+    /** Forget the pages visited so far, e.g. when the iterator is rewound */
+    public void reset() {
+        expected = null;
+        remaining = 0;
+    }
+
+    /** Record that the iterator moved to page p */
+    public void visited(Page p) {
+        boolean sequential = p.getId().equals(expected);
+        if (sequential)
+            remaining--;
+        else
+            remaining = 0;
+        expected = chain.next(p);
+        if (!sequential || expected == null)
+            return;
+        BufferPool bp = Database.getBufferPool();
+        int window = bp.getReadAhead();
+        if (window > 0 && remaining <= window / 2) {
+            bp.prefetch(expected, window, chain, coldScan);
+            remaining = window;
+        }
+    }
+}
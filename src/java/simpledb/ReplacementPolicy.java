@@ -0,0 +1,75 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs a free frame. The BufferPool reports every access to and removal
+ * of a page, and asks for a victim when it is full.
+ * <p>
+ * Implementations must be thread safe; the BufferPool calls them from
+ * concurrently running transactions.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Tells the policy whether a candidate page may currently be evicted,
+     * e.g. because it is clean.
+     */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Record a hit on the specified page, or that it has just been loaded
+     * into the buffer pool.
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Record an access by a scan that asked not to disturb the working set.
+     * A page that was already resident keeps its position; a page that the
+     * scan has just loaded is placed where it will be evicted first, so a
+     * large scan keeps reusing a few frames.
+     *
+     * @see DbFile#iterator(TransactionId, boolean)
+     */
+    public void pageScanned(PageId pid);
+
+    /** Forget about the specified page; it is no longer resident. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose the next page to evict. The page is not removed by this call;
+     * the BufferPool reports the removal through {@link #pageRemoved}.
+     *
+     * @param evictable filter on the pages that may be chosen
+     * @return the page to evict, or null if no resident page can be evicted
+     */
+    public PageId chooseVictim(Evictable evictable);
+
+    /** Forget about all pages. */
+    public void clear();
+
+    /** The replacement policies that ship with SimpleDb. */
+    public enum Kind {
+        LRU, CLOCK, TWO_Q, LRU_K;
+
+        /**
+         * @param numPages the capacity of the buffer pool the policy serves
+         * @return a new, empty policy of this kind
+         */
+        public ReplacementPolicy create(int numPages) {
+            switch (this) {
+            case CLOCK:
+                return new ClockPolicy(numPages);
+            case TWO_Q:
+                return new TwoQueuePolicy(numPages);
+            case LRU_K:
+                return new LRUKPolicy(numPages, LRUKPolicy.DEFAULT_K);
+            default:
+                return new LRUPolicy();
+            }
+        }
+    }
+}
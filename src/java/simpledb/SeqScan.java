@@ -32,13 +32,34 @@ public class SeqScan implements DbIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator iterator;
+    private boolean coldScan;
 
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, false);
+    }
+
+    /**
+     * Creates a sequential scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     * @param coldScan
+     *            if true, the scan reads its pages with the cold scan hint
+     *            and does not evict the working set of the buffer pool
+     * @see DbFile#iterator(TransactionId, boolean)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, boolean coldScan) {
         // some code goes here
         this.tid = tid;
         this.tableid = tableid;
         this.tableAlias = tableAlias;
-        this.iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        this.coldScan = coldScan;
+        this.iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid, coldScan);
     }
 
     /**
@@ -75,7 +96,7 @@ public class SeqScan implements DbIterator {
         // some code goes here
         this.tableid = tableid;
         this.tableAlias = tableAlias;
-        this.iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        this.iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid, coldScan);
     }
 
     public SeqScan(TransactionId tid, int tableid) {
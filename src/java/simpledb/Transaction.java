@@ -12,7 +12,18 @@ public class Transaction {
     volatile boolean started = false;
 
     public Transaction() {
-        tid = new TransactionId();
+        this(false);
+    }
+
+    /**
+     * Create a transaction that may only read pages if readOnly is set. A
+     * read-only transaction of a multi-version BufferPool reads a snapshot
+     * of the database without locking anything.
+     *
+     * @see BufferPool#setMultiVersion
+     */
+    public Transaction(boolean readOnly) {
+        tid = new TransactionId(readOnly);
     }
 
     /** Start the transaction running */
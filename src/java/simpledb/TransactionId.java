@@ -12,15 +12,30 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final boolean readOnly;
 
     public TransactionId() {
+        this(false);
+    }
+
+    /**
+     * Create the id of a new transaction, which may only read pages if
+     * readOnly is set
+     */
+    public TransactionId(boolean readOnly) {
         myid = counter.getAndIncrement();
+        this.readOnly = readOnly;
     }
 
     public long getId() {
         return myid;
     }
 
+    /** @return true if the transaction may only read pages */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TwoQueuePolicy implements the full 2Q algorithm of Johnson and Shasha.
+ * Pages seen for the first time enter a small FIFO queue (A1in); only pages
+ * that are referenced again after falling out of it, while their id is
+ * still remembered in the ghost queue (A1out), are promoted to the main LRU
+ * queue (Am). A sequential scan therefore cycles through A1in and cannot
+ * flush the frequently used pages held in Am.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    /** Fraction of the pool reserved for A1in */
+    public static final double IN_FRACTION = 0.25;
+    /** Number of evicted page ids remembered in A1out, as a fraction of the pool */
+    public static final double OUT_FRACTION = 0.5;
+
+    private final PageList a1in;
+    private final PageList a1out;
+    private final PageList am;
+    /** pages in A1in that were loaded by a cold scan */
+    private final HashSet<PageId> scanned;
+    private final int kin;
+    private final int kout;
+
+    /**
+     * @param numPages the capacity of the buffer pool the policy serves
+     */
+    public TwoQueuePolicy(int numPages) {
+        a1in = new PageList();
+        a1out = new PageList();
+        am = new PageList();
+        scanned = new HashSet<PageId>();
+        kin = Math.max(1, (int) (numPages * IN_FRACTION));
+        kout = Math.max(1, (int) (numPages * OUT_FRACTION));
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        scanned.remove(pid);
+        if (am.contains(pid)) {
+            am.addLast(pid);
+        }
+        else if (!a1in.contains(pid)) {
+            if (a1out.remove(pid))
+                am.addLast(pid);
+            else
+                a1in.addLast(pid);
+        }
+        // a hit in A1in leaves the page where it is
+    }
+
+    public synchronized void pageScanned(PageId pid) {
+        // pages that are new to the scan are evicted ahead of the rest of A1in
+        // and are not remembered in A1out; a scan does not count as the second
+        // reference that would promote a page remembered in A1out to Am
+        if (!am.contains(pid) && !a1in.contains(pid)) {
+            a1out.remove(pid);
+            a1in.addFirst(pid);
+            scanned.add(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            if (scanned.remove(pid))
+                return;
+            a1out.addLast(pid);
+            if (a1out.size() > kout)
+                a1out.removeFirst();
+        }
+        else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        PageId victim = null;
+        // scanned pages sit at the head of A1in
+        if (a1in.size() > kin || !scanned.isEmpty())
+            victim = a1in.firstEvictable(evictable);
+        if (victim == null)
+            victim = am.firstEvictable(evictable);
+        if (victim == null)
+            victim = a1in.firstEvictable(evictable);
+        return victim;
+    }
+
+    public synchronized void clear() {
+        a1in.clear();
+        a1out.clear();
+        am.clear();
+        scanned.clear();
+    }
+}
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +26,15 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                return new IntField(buf.getInt());
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +53,20 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                int strLen = buf.getInt();
+                byte bs[] = new byte[strLen];
+                buf.get(bs);
+                buf.position(buf.position() + STRING_LEN - strLen);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (RuntimeException e) {
+                // buffer underflow, or a corrupt length
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +85,14 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the current position of the specified buffer, which is
+   *   advanced past the field.
+   * @param buf The buffer to read from
+   * @throws ParseException if the data read from the buffer is not
+   *   of the appropriate type.
+   */
+    public abstract Field parse(ByteBuffer buf) throws ParseException;
+
 }
@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the committed versions of pages that snapshot readers
+ * of a BufferPool may still need.
+ * <p>
+ * Every commit that writes pages gets a commit timestamp. Before the new
+ * contents of its pages become visible, the commit saves their previous
+ * committed images in the version chain of each page, tagged with the
+ * timestamp that ended them. A snapshot sees every commit whose timestamp
+ * is at most its own, and no other: it reads the oldest saved image that
+ * was ended by a later commit, or the current committed image of the page
+ * if there is none. Timestamps are only handed out to snapshots once every
+ * commit up to them is complete, so a commit is never seen half done.
+ * <p>
+ * Saved images are dropped as soon as no running snapshot is older than
+ * the commit that ended them.
+ */
+public class VersionStore {
+
+    /** A committed image of a page, and the timestamp of the commit that replaced it */
+    private static class Version {
+        final long end;
+        final Page page;
+        /** the image this one replaced, or null */
+        volatile Version older;
+
+        Version(long end, Page page, Version older) {
+            this.end = end;
+            this.page = page;
+            this.older = older;
+        }
+    }
+
+    /** the newest saved image of each page */
+    private final ConcurrentHashMap<PageId, Version> chains = new ConcurrentHashMap<PageId, Version>();
+    /** the saved images, in commit order */
+    private final ArrayDeque<Version> saved = new ArrayDeque<Version>();
+    /** the number of running snapshots of each timestamp */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+    /** the timestamps of commits that have saved their versions but are not complete yet */
+    private final TreeSet<Long> committing = new TreeSet<Long>();
+    /** the timestamp of the last commit new snapshots see */
+    private long visible;
+    private long next = 1;
+
+    /**
+     * Start a snapshot of the committed state of the database.
+     *
+     * @return the timestamp of the snapshot, to pass to {@link #getVersion}
+     *     and {@link #endSnapshot}
+     */
+    public synchronized long beginSnapshot() {
+        Integer n = snapshots.get(visible);
+        snapshots.put(visible, n == null ? 1 : n + 1);
+        return visible;
+    }
+
+    /** End a snapshot started by {@link #beginSnapshot} */
+    public synchronized void endSnapshot(long ts) {
+        Integer n = snapshots.get(ts);
+        if (n == null)
+            return;
+        if (n > 1)
+            snapshots.put(ts, n - 1);
+        else
+            snapshots.remove(ts);
+        prune();
+    }
+
+    /**
+     * Start a commit of the specified pages, saving the images their
+     * {@link Page#getBeforeImage before images} hold. Must be called before
+     * the new contents of the pages become their committed images, and be
+     * followed by {@link #endCommit} once they have.
+     *
+     * @return the timestamp of the commit, which is never 0
+     */
+    public synchronized long beginCommit(Collection<Page> pages) {
+        long ts = next++;
+        for (Page p : pages) {
+            Version v = new Version(ts, p.getBeforeImage(), chains.get(p.getId()));
+            chains.put(p.getId(), v);
+            saved.addLast(v);
+        }
+        committing.add(ts);
+        return ts;
+    }
+
+    /** Make a commit started by {@link #beginCommit} visible to new snapshots */
+    public synchronized void endCommit(long ts) {
+        committing.remove(ts);
+        visible = committing.isEmpty() ? next - 1 : committing.first() - 1;
+        prune();
+    }
+
+    /**
+     * @return the image of pid a snapshot of timestamp ts sees, or null if
+     *     it sees the current committed image of the page
+     */
+    public Page getVersion(PageId pid, long ts) {
+        Page p = null;
+        for (Version v = chains.get(pid); v != null && v.end > ts; v = v.older)
+            p = v.page;
+        return p;
+    }
+
+    /** @return the number of page images currently saved */
+    public synchronized int getNumVersions() {
+        return saved.size();
+    }
+
+    /** Drop the saved images that no running snapshot can see any more */
+    private void prune() {
+        long oldest = snapshots.isEmpty() ? visible : snapshots.firstKey();
+        while (!saved.isEmpty() && saved.peekFirst().end <= oldest) {
+            Version v = saved.removeFirst();
+            PageId pid = v.page.getId();
+            Version head = chains.get(pid);
+            if (head == v)
+                chains.remove(pid);
+            else {
+                // v is the oldest saved image of pid, so it follows the rest
+                Version newer = head;
+                while (newer.older != v)
+                    newer = newer.older;
+                newer.older = null;
+            }
+        }
+    }
+}
@@ -172,6 +172,45 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().pageNumber() == 2 || otherPage.getId().pageNumber() == 2);
 	}
 
+	/**
+	 * Inserts and searches keep the locks of the leaf pages they use, but not those of
+	 * the root pointer page and the internal pages they walk past
+	 */
+	@Test
+	public void testInternalPagesUnlocked() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+
+		// the pages are full, so let another transaction split the path first
+		TransactionId splitter = new TransactionId();
+		bp.insertTuple(splitter, bigFile.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE / 2, 2));
+		bp.transactionComplete(splitter);
+		BTreePageId rootId = ((BTreeRootPtrPage) bigFile.readPage(rootPtrId)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		Tuple t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE / 2, 2);
+		bp.insertTuple(tid, bigFile.getId(), t);
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertTrue(bp.holdsLock(tid, t.getRecordId().getPageId()));
+
+		TransactionId reader = new TransactionId();
+		DbFileIterator it = bigFile.indexIterator(reader,
+				new IndexPredicate(Op.EQUALS, new IntField(0)));
+		it.open();
+		it.close();
+		assertFalse(bp.holdsLock(reader, rootPtrId));
+		assertFalse(bp.holdsLock(reader, rootId));
+
+		// pages the transaction had locked before stay locked
+		bp.getPage(reader, rootId, Permissions.READ_ONLY);
+		it.open();
+		it.close();
+		assertTrue(bp.holdsLock(reader, rootId));
+		bp.transactionComplete(reader);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
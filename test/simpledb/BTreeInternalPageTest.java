@@ -313,6 +313,41 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+
+		// leave some empty slots between the entries
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 1; i < entries.size(); i += 3)
+			page.deleteKeyAndRightChild(entries.get(i));
+
+		assertEquals(page.iterator().next().getLeftChild(), page.findChild(null));
+		for (int[] entry : EXAMPLE_VALUES) {
+			for (int key = entry[1] - 1; key <= entry[1] + 1; key++) {
+				// the left child of the first key greater than or equal to the field,
+				// or the right child of the last key
+				Field f = new IntField(key);
+				BTreePageId expected = null;
+				it = page.iterator();
+				while (it.hasNext()) {
+					BTreeEntry e = it.next();
+					expected = e.getRightChild();
+					if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey())) {
+						expected = e.getLeftChild();
+						break;
+					}
+				}
+				assertEquals(expected, page.findChild(f));
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -336,6 +336,44 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.findSlot()
+	 */
+	@Test public void findSlot() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+
+		// leave some empty slots between the tuples, and add some duplicate keys
+		Iterator<Tuple> it = page.iterator();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		while (it.hasNext())
+			tuples.add(it.next());
+		for (int i = 1; i < tuples.size(); i += 3)
+			page.deleteTuple(tuples.get(i));
+		for (int i = 0; i < tuples.size(); i += 4)
+			page.insertTuple(BTreeUtility.getBTreeTuple(EXAMPLE_VALUES[i][0], 2));
+		page.checkRep(0, null, null, false, 0);
+
+		for (int[] tuple : EXAMPLE_VALUES) {
+			for (int key = tuple[0] - 1; key <= tuple[0] + 1; key++) {
+				Field f = new IntField(key);
+				for (boolean inclusive : new boolean[] { true, false }) {
+					// the slot of the first tuple whose key is at least the field
+					int expected = page.getMaxTuples();
+					it = page.iterator();
+					while (it.hasNext()) {
+						Tuple t = it.next();
+						if (f.compare(inclusive ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN,
+								t.getField(0))) {
+							expected = t.getRecordId().tupleno();
+							break;
+						}
+					}
+					assertEquals(expected, page.findSlot(f, inclusive));
+				}
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,75 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Measures the latency of BufferPool hits as the size of the pool grows.
+ * For each pool size, a table of half that many empty pages is loaded into
+ * the pool, leaving room for the pages of each shard to be spread unevenly,
+ * and random pages of it are then requested again.
+ * With a constant time replacement policy, the time per hit should stay
+ * roughly flat from the smallest pool to the largest.
+ * <p>
+ * Not a unit test; run it with
+ * <pre>java -cp bin/src:bin/test:lib/* simpledb.BufferPoolHitLatency [hits]</pre>
+ */
+public class BufferPoolHitLatency {
+
+    private static final int[] POOL_SIZES = { 50, 500, 5000, 50000, 100000 };
+    /** Small pages keep the largest table at a few tens of MB */
+    private static final int PAGE_SIZE = 256;
+
+    public static void main(String[] args) throws Exception {
+        int hits = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        BufferPool.setPageSize(PAGE_SIZE);
+        System.out.println("numPages\tns/hit");
+        for (int numPages : POOL_SIZES)
+            System.out.println(numPages + "\t" + nanosPerHit(numPages, hits));
+        Database.getCatalog().clear();
+        BufferPool.resetPageSize();
+    }
+
+    private static long nanosPerHit(int numPages, int hits) throws Exception {
+        // a file of zeros is a heap file of empty pages
+        File f = File.createTempFile("hits", ".dat");
+        f.deleteOnExit();
+        int tablePages = numPages / 2;
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength((long) tablePages * PAGE_SIZE);
+        raf.close();
+
+        Database.reset();
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(hf, "hits" + numPages);
+        BufferPool bp = Database.resetBufferPool(numPages);
+        bp.setReadAhead(0);
+
+        TransactionId tid = new TransactionId();
+        HeapPageId[] pids = new HeapPageId[tablePages];
+        for (int i = 0; i < tablePages; i++) {
+            pids[i] = new HeapPageId(hf.getId(), i);
+            bp.getPage(tid, pids[i], Permissions.READ_ONLY);
+        }
+
+        Random r = new Random(0);
+        int[] order = new int[hits];
+        for (int i = 0; i < hits; i++)
+            order[i] = r.nextInt(tablePages);
+
+        // warm up, then time the same sequence of hits
+        for (int i = 0; i < hits; i++)
+            bp.getPage(tid, pids[order[i]], Permissions.READ_ONLY);
+        long misses = bp.getMissCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < hits; i++)
+            bp.getPage(tid, pids[order[i]], Permissions.READ_ONLY);
+        long elapsed = System.nanoTime() - start;
+        if (bp.getMissCount() != misses)
+            throw new IllegalStateException("pool of " + numPages + " pages missed");
+
+        bp.transactionComplete(tid);
+        return elapsed / hits;
+    }
+}
@@ -0,0 +1,620 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static void scan(DbFileIterator it) throws Exception {
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+    }
+
+    /**
+     * Small pools are not split; large pools get one shard per
+     * MIN_SHARD_PAGES pages, up to DEFAULT_SHARDS
+     */
+    @Test public void numShards() {
+        assertEquals(1, new BufferPool(BufferPool.DEFAULT_PAGES).getNumShards());
+        assertEquals(4, new BufferPool(256).getNumShards());
+        assertEquals(BufferPool.DEFAULT_SHARDS, new BufferPool(100000).getNumShards());
+        assertEquals(3, new BufferPool(10, ReplacementPolicy.Kind.LRU, 3).getNumShards());
+    }
+
+    /**
+     * A sharded pool caches every page of a file that fits in it
+     */
+    @Test public void shardedHitsAndMisses() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = Database.resetBufferPool(256);
+        bp.setReadAhead(0);
+        assertEquals(4, bp.getNumShards());
+
+        scan(hf.iterator(tid));
+        assertEquals(20, bp.getMissCount());
+        long hits = bp.getHitCount();
+
+        scan(hf.iterator(tid));
+        assertEquals(20, bp.getMissCount());
+        assertTrue(bp.getHitCount() > hits);
+        assertEquals(0, bp.getEvictionCount());
+    }
+
+    /**
+     * The pool evicts its least recently used clean page; flushing a page
+     * does not count as a use of it, and a discarded page frees its frame
+     */
+    @Test public void evictionOrder() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 5, null, null);
+        BufferPool bp = Database.resetBufferPool(3, ReplacementPolicy.Kind.LRU);
+        bp.setReadAhead(0);
+        HeapPageId[] pids = new HeapPageId[5];
+        for (int i = 0; i < pids.length; i++)
+            pids[i] = new HeapPageId(hf.getId(), i);
+
+        // dirty page 1, then use pages 0, 2 and 0 again: LRU order is 1, 2, 0
+        HeapPage p1 = (HeapPage) bp.getPage(tid, pids[1], Permissions.READ_WRITE);
+        bp.deleteTuple(tid, p1.iterator().next());
+        bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        bp.getPage(tid, pids[2], Permissions.READ_ONLY);
+        bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        assertEquals(3, bp.getMissCount());
+
+        // writing page 1 out makes it clean but leaves it least recently used
+        bp.flushPages(tid);
+        bp.getPage(tid, pids[3], Permissions.READ_ONLY);
+        assertEquals(1, bp.getEvictionCount());
+        bp.getPage(tid, pids[2], Permissions.READ_ONLY);
+        bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        assertEquals(4, bp.getMissCount());
+
+        // now 3 is least recently used
+        bp.getPage(tid, pids[1], Permissions.READ_ONLY);
+        assertEquals(5, bp.getMissCount());
+        assertEquals(2, bp.getEvictionCount());
+        bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        bp.getPage(tid, pids[2], Permissions.READ_ONLY);
+        assertEquals(5, bp.getMissCount());
+
+        // a discarded page leaves a free frame behind
+        bp.discardPage(pids[0]);
+        bp.getPage(tid, pids[4], Permissions.READ_ONLY);
+        assertEquals(2, bp.getEvictionCount());
+        bp.getPage(tid, pids[1], Permissions.READ_ONLY);
+        bp.getPage(tid, pids[2], Permissions.READ_ONLY);
+        assertEquals(6, bp.getMissCount());
+    }
+
+    /**
+     * Dirty pages of a sharded pool are written out on commit and restored
+     * on abort
+     */
+    @Test public void shardedCommitAndAbort() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        assertEquals(4, Database.resetBufferPool(256).getNumShards());
+
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        // delete the first tuple of every page and abort
+        TransactionId t1 = new TransactionId();
+        for (int i = 0; i < tuples.size(); i += 504)
+            Database.getBufferPool().deleteTuple(t1, tuples.get(i));
+        Database.getBufferPool().transactionComplete(t1, false);
+        for (int i = 0; i < 4; i++) {
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            assertEquals(0, p.getNumEmptySlots());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        // delete them again and commit
+        TransactionId t2 = new TransactionId();
+        for (int i = 0; i < tuples.size(); i += 504)
+            Database.getBufferPool().deleteTuple(t2, tuples.get(i));
+        Database.getBufferPool().transactionComplete(t2, true);
+        for (int i = 0; i < 4; i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            assertEquals(1, p.getNumEmptySlots());
+        }
+    }
+
+    /**
+     * Commit writes each run of adjacent dirty pages with a single write
+     */
+    @Test public void commitCoalescesWrites() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 5, null, null);
+        BufferPool bp = Database.resetBufferPool(256);
+
+        // dirty pages 0-2 and 4
+        TransactionId t = new TransactionId();
+        for (int i : new int[] { 0, 1, 2, 4 }) {
+            HeapPage p = (HeapPage) bp.getPage(t, new HeapPageId(hf.getId(), i),
+                    Permissions.READ_ONLY);
+            bp.deleteTuple(t, p.iterator().next());
+        }
+        bp.transactionComplete(t, true);
+        assertEquals(2, bp.getFlushWriteCount());
+        assertEquals(4, bp.getFlushedPageCount());
+
+        for (int i = 0; i < 5; i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            assertEquals(i == 3 ? 0 : 1, p.getNumEmptySlots());
+        }
+    }
+
+    /**
+     * Commit and abort only touch the pages of their own transaction
+     */
+    @Test public void completeOnlyOwnPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(256);
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        HeapPage p0 = (HeapPage) bp.getPage(t1, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        HeapPage p1 = (HeapPage) bp.getPage(t1, new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        HeapPage p3 = (HeapPage) bp.getPage(t2, new HeapPageId(hf.getId(), 3), Permissions.READ_WRITE);
+        p0.markDirty(true, t1);
+        p3.markDirty(true, t2);
+
+        bp.transactionComplete(t1, true);
+        assertEquals(1, bp.getFlushedPageCount());
+        assertNull(p0.isDirty());
+        assertNull(p1.isDirty());
+        assertEquals(t2, p3.isDirty());
+
+        bp.transactionComplete(t2, false);
+        assertEquals(1, bp.getFlushedPageCount());
+        HeapPage restored = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY);
+        assertNotSame(p3, restored);
+        assertNull(restored.isDirty());
+    }
+
+    /**
+     * Abort restores the state of the last commit from memory, without
+     * reading the page from disk
+     */
+    @Test public void abortRestoresBeforeImage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        BufferPool bp = Database.resetBufferPool(256);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        TransactionId t1 = new TransactionId();
+        HeapPage p = (HeapPage) bp.getPage(t1, pid, Permissions.READ_ONLY);
+        bp.deleteTuple(t1, p.iterator().next());
+        bp.transactionComplete(t1, true);
+
+        TransactionId t2 = new TransactionId();
+        p = (HeapPage) bp.getPage(t2, pid, Permissions.READ_ONLY);
+        bp.deleteTuple(t2, p.iterator().next());
+        assertEquals(2, p.getNumEmptySlots());
+        // an abort that read the page back would see an empty page
+        hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        bp.transactionComplete(t2, false);
+
+        p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1, p.getNumEmptySlots());
+        assertNull(p.isDirty());
+    }
+
+    /**
+     * A page written out before its transaction commits still gets the
+     * committed image as its before image, so a later abort keeps the commit
+     */
+    @Test public void abortAfterEarlyFlushKeepsCommit() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        BufferPool bp = Database.resetBufferPool(256);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        TransactionId t1 = new TransactionId();
+        HeapPage p = (HeapPage) bp.getPage(t1, pid, Permissions.READ_ONLY);
+        bp.deleteTuple(t1, p.iterator().next());
+        bp.flushAllPages();
+        bp.transactionComplete(t1, true);
+
+        // t2 only write-locks the page
+        TransactionId t2 = new TransactionId();
+        bp.getPage(t2, pid, Permissions.READ_WRITE);
+        bp.transactionComplete(t2, false);
+
+        p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1, p.getNumEmptySlots());
+        assertEquals(1, p.getBeforeImage().getNumEmptySlots());
+    }
+
+    /**
+     * A pinned page is not evicted until it is unpinned or its transaction
+     * completes
+     */
+    @Test public void pinnedPagesStayResident() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.setReadAhead(0);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        Page p = bp.pinPage(tid, pid, Permissions.READ_ONLY, false);
+        for (int i = 1; i < 4; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertSame(p, bp.getPage(tid, pid, Permissions.READ_ONLY));
+        assertEquals(1, bp.getPinCount(pid));
+
+        // with both frames pinned there is nothing left to evict
+        bp.pinPage(tid, new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY, false);
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException expected) {
+        }
+
+        bp.unpinPage(tid, pid);
+        assertEquals(0, bp.getPinCount(pid));
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(new HeapPageId(hf.getId(), 3)));
+        // completing released the pins, so releasing them again does nothing
+        bp.unpinPage(tid, new HeapPageId(hf.getId(), 3));
+
+        // an iterator closed after its transaction completed
+        TransactionId t = new TransactionId();
+        DbFileIterator it = hf.iterator(t);
+        it.open();
+        it.next();
+        bp.transactionComplete(t);
+        it.close();
+
+        t = new TransactionId();
+        bp.pinPage(t, pid, Permissions.READ_ONLY, false);
+        try {
+            bp.unpinPage(t, new HeapPageId(hf.getId(), 1));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        bp.transactionComplete(t);
+    }
+
+    /**
+     * The pages saved by one pool are loaded into the free frames of another
+     */
+    @Test public void warmRestart() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(256);
+        bp.setReadAhead(0);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+
+        File saved = File.createTempFile("pages", ".dat");
+        saved.deleteOnExit();
+        bp.savePageIds(saved);
+
+        bp = Database.resetBufferPool(256);
+        bp.setReadAhead(0);
+        bp.loadPageIds(saved);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(0, bp.getMissCount());
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(1, bp.getMissCount());
+    }
+
+    /**
+     * B+ tree page ids survive a warm restart as well; a file that is cut
+     * short or names an unknown kind of page id is rejected
+     */
+    @Test public void warmRestartBTree() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+        BufferPool bp = Database.resetBufferPool(256);
+        bp.setReadAhead(0);
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY);
+        bp.getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+
+        File saved = File.createTempFile("pages", ".dat");
+        saved.deleteOnExit();
+        bp.savePageIds(saved);
+        assertEquals(4 + 2 * 13, saved.length());
+
+        bp = Database.resetBufferPool(256);
+        bp.setReadAhead(0);
+        bp.loadPageIds(saved);
+        rootPtr = (BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY);
+        bp.getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+        assertEquals(0, bp.getMissCount());
+
+        RandomAccessFile raf = new RandomAccessFile(saved, "rw");
+        raf.setLength(saved.length() - 1);
+        raf.seek(4);
+        raf.writeByte(7);
+        raf.close();
+        try {
+            bp.loadPageIds(saved);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * A table or transaction at its quota evicts its own pages rather than
+     * those of other tables
+     */
+    @Test public void quotas() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        BufferPool bp = Database.resetBufferPool(64);
+        bp.setReadAhead(0);
+        for (int i = 0; i < 10; i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+
+        bp.setTableQuota(big.getId(), 0.25);
+        for (int i = 0; i < 40; i++)
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+        assertEquals(16, bp.getTableOccupancy(big.getId()));
+        assertEquals(10, bp.getTableOccupancy(small.getId()));
+        bp.transactionComplete(tid);
+
+        bp = Database.resetBufferPool(64);
+        bp.setReadAhead(0);
+        for (int i = 0; i < 10; i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+        TransactionId scan = new TransactionId();
+        new Query(scan).setBufferPoolQuota(0.5);
+        for (int i = 0; i < 40; i++)
+            bp.getPage(scan, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(scan);
+        assertEquals(32, bp.getTableOccupancy(big.getId()));
+        assertEquals(10, bp.getTableOccupancy(small.getId()));
+    }
+
+    /**
+     * A heap file with pages four times the default size scans correctly, and
+     * each of its cached pages takes four frames of the pool, on and off the
+     * heap
+     */
+    @Test public void largePages() throws Exception {
+        int pageSize = 4 * BufferPool.getPageSize();
+        int perPage = (pageSize * 8) / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, perPage * 5, 1000, null, tuples);
+        HeapFileEncoder.convert(tuples, f, pageSize, 2);
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2), pageSize);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertEquals(5, hf.numPages());
+
+        for (boolean offHeap : new boolean[] { false, true }) {
+            BufferPool bp = Database.resetBufferPool(14, ReplacementPolicy.Kind.LRU, offHeap);
+            bp.setReadAhead(0);
+            for (int pass = 0; pass < 2; pass++) {
+                SystemTestUtil.matchTuples(hf, tuples);
+                assertEquals(12, bp.getNumUsedFrames());
+                assertEquals(3, bp.getTableOccupancy(hf.getId()));
+            }
+        }
+
+        hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(6, hf.numPages());
+        assertEquals(6L * pageSize, f.length());
+        assertEquals(perPage - 1, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 5))).getNumEmptySlots());
+    }
+
+    /**
+     * A sequential scan prefetches the pages ahead of it; every page is still
+     * loaded exactly once unless a prefetched page is evicted before use
+     */
+    @Test public void readAhead() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = Database.resetBufferPool(256);
+        bp.setReadAhead(4);
+
+        // moving from page 0 to page 1 starts the read-ahead of pages 2-5
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 505; i++)
+            it.next();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bp.getPrefetchCount() < 4 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(4, bp.getPrefetchCount());
+        assertEquals(2, bp.getMissCount());
+
+        bp.discardPage(new HeapPageId(hf.getId(), 5));
+        assertEquals(1, bp.getWastedPrefetchCount());
+
+        while (it.hasNext())
+            it.next();
+        it.close();
+        assertEquals(21, bp.getMissCount() + bp.getPrefetchCount());
+        assertEquals(bp.getPrefetchCount() - 1, bp.getPrefetchHitCount());
+        assertEquals(1, bp.getWastedPrefetchCount());
+    }
+
+    /**
+     * An off-heap pool only keeps a few pages decoded, but still serves every
+     * cached page without going to disk, and keeps dirty pages decoded
+     */
+    @Test public void offHeapFrames() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = Database.resetBufferPool(30, ReplacementPolicy.Kind.LRU, true);
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 20; i++) {
+                HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), i),
+                        Permissions.READ_ONLY);
+                assertEquals(0, p.getNumEmptySlots());
+            }
+            assertEquals(3, bp.getNumDecodedPages());
+        }
+        assertEquals(20, bp.getMissCount());
+        assertEquals(20, bp.getHitCount());
+        assertEquals(0, bp.getEvictionCount());
+        bp.transactionComplete(tid);
+
+        // dirty pages are never dropped from the heap before they are flushed
+        TransactionId t1 = new TransactionId();
+        for (int i = 0; i < 5; i++) {
+            HeapPage p = (HeapPage) bp.getPage(t1, new HeapPageId(hf.getId(), i),
+                    Permissions.READ_ONLY);
+            bp.deleteTuple(t1, p.iterator().next());
+        }
+        assertEquals(5, bp.getNumDecodedPages());
+        bp.transactionComplete(t1, false);
+        for (int i = 0; i < 20; i++) {
+            HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), i),
+                    Permissions.READ_ONLY);
+            assertEquals(0, p.getNumEmptySlots());
+        }
+    }
+
+    private static int emptySlots(BufferPool bp, TransactionId t, PageId pid) throws Exception {
+        return ((HeapPage) bp.getPage(t, pid, Permissions.READ_ONLY)).getNumEmptySlots();
+    }
+
+    /**
+     * A read-only transaction of a multi-version pool reads the state of the
+     * last commit before its first read without waiting for writers, and the
+     * images saved for it are dropped when it completes
+     */
+    @Test public void snapshotReads() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = Database.resetBufferPool(256);
+        bp.setMultiVersion(true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        TransactionId r1 = new TransactionId(true);
+        assertEquals(0, emptySlots(bp, r1, pid));
+
+        TransactionId w = new TransactionId();
+        HeapPage p = (HeapPage) bp.getPage(w, pid, Permissions.READ_WRITE);
+        bp.deleteTuple(w, p.iterator().next());
+        TransactionId r2 = new TransactionId(true);
+        assertEquals(0, emptySlots(bp, r2, pid));
+        assertFalse(bp.holdsLock(r2, pid));
+        scan(hf.iterator(r2));
+
+        bp.transactionComplete(w, true);
+        assertEquals(1, bp.getNumPageVersions());
+        assertEquals(0, emptySlots(bp, r1, pid));
+        assertEquals(0, emptySlots(bp, r2, pid));
+        TransactionId r3 = new TransactionId(true);
+        assertEquals(1, emptySlots(bp, r3, pid));
+
+        bp.transactionComplete(r1);
+        assertEquals(1, bp.getNumPageVersions());
+        bp.transactionComplete(r2);
+        assertEquals(0, bp.getNumPageVersions());
+
+        try {
+            bp.getPage(r3, pid, Permissions.READ_WRITE);
+            fail("expected a read-only transaction not to write");
+        } catch (DbException e) {
+        }
+        bp.transactionComplete(r3);
+    }
+
+    /**
+     * A read-only transaction of a single-version pool reads committed pages
+     * without locking them, and aborts at its next read once a commit has
+     * changed a page it has read
+     */
+    @Test public void optimisticReads() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = Database.resetBufferPool(256);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPageId other = new HeapPageId(hf.getId(), 1);
+
+        TransactionId r1 = new TransactionId(true);
+        assertEquals(0, emptySlots(bp, r1, pid));
+        assertFalse(bp.holdsLock(r1, pid));
+
+        TransactionId w = new TransactionId();
+        HeapPage p = (HeapPage) bp.getPage(w, pid, Permissions.READ_WRITE);
+        bp.deleteTuple(w, p.iterator().next());
+        assertEquals(0, emptySlots(bp, r1, pid));
+        scan(hf.iterator(r1));
+
+        bp.transactionComplete(w, true);
+        try {
+            bp.getPage(r1, other, Permissions.READ_ONLY);
+            fail("expected the reader to abort");
+        } catch (TransactionAbortedException e) {
+        }
+        bp.transactionComplete(r1);
+
+        TransactionId r2 = new TransactionId(true);
+        assertEquals(1, emptySlots(bp, r2, pid));
+        assertEquals(0, emptySlots(bp, r2, other));
+        bp.transactionComplete(r2);
+    }
+
+    /**
+     * A reader that finds a commit of its page in progress blocks until the
+     * commit ends, and then gets the new stamp of the page
+     */
+    @Test public void optimisticReadsWaitForCommit() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        final HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        final CommitStamps stamps = new CommitStamps();
+        long before = stamps.stamp(pid);
+
+        ArrayList<Page> pages = new ArrayList<Page>();
+        pages.add(hf.readPage(pid));
+        int[] stripes = stamps.beginCommit(pages);
+        final long[] read = new long[1];
+        Thread reader = new Thread() {
+            public void run() {
+                read[0] = stamps.stamp(pid);
+            }
+        };
+        reader.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (reader.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(Thread.State.WAITING, reader.getState());
+
+        stamps.endCommit(stripes);
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+        assertTrue(read[0] != before);
+        assertEquals(read[0], stamps.stamp(pid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -93,6 +93,36 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /** A SkeletonFile that counts how often it is closed */
+    private static class ClosingFile extends SkeletonFile {
+        int closed;
+
+        ClosingFile(int tableid) {
+            super(tableid, Utility.getTupleDesc(2));
+        }
+
+        public void close() {
+            closed++;
+        }
+    }
+
+    /**
+     * The catalog closes the file of a table it replaces or clears
+     */
+    @Test public void closesDroppedFiles() {
+        ClosingFile f1 = new ClosingFile(id1);
+        ClosingFile f2 = new ClosingFile(id1);
+        Database.getCatalog().addTable(f1, nameThisTestRun);
+        Database.getCatalog().addTable(f1, nameThisTestRun);
+        assertEquals(0, f1.closed);
+        Database.getCatalog().addTable(f2, nameThisTestRun);
+        assertEquals(1, f1.closed);
+        assertEquals(0, f2.closed);
+        Database.getCatalog().clear();
+        assertEquals(1, f1.closed);
+        assertEquals(1, f2.closed);
+    }
+
     /**
      * JUnit suite target
      */
@@ -4,6 +4,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -43,6 +45,64 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts only lock the pages that have room, and reuse slots freed by
+     * deletes
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 5 + 1, null, null);
+        hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        for (int i = 0; i < 5; ++i)
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 5)));
+
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        Database.getBufferPool().deleteTuple(tid, p.iterator().next());
+        ArrayList<Page> dirtied = hf.insertTuple(tid, Utility.getHeapTuple(2, 2));
+        assertEquals(new HeapPageId(hf.getId(), 2), dirtied.get(0).getId());
+        assertEquals(6, hf.numPages());
+    }
+
+    /**
+     * A page filled by a transaction that aborts is offered to later inserts
+     * again
+     */
+    @Test public void insertReusesPageAfterAbort() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 503, null, null);
+        TransactionId filler = new TransactionId();
+        Database.getBufferPool().insertTuple(filler, hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(filler, false);
+
+        ArrayList<Page> dirtied = hf.insertTuple(tid, Utility.getHeapTuple(2, 2));
+        assertEquals(new HeapPageId(hf.getId(), 0), dirtied.get(0).getId());
+        assertEquals(1, hf.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.writePage(): writing a page leaves the rest of
+     * the file intact
+     */
+    @Test public void writePage() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            HeapPage p = new HeapPage(new HeapPageId(empty.getId(), i),
+                    HeapPage.createEmptyPageData());
+            for (int j = 0; j <= i; ++j)
+                p.insertTuple(Utility.getHeapTuple(j, 2));
+            empty.writePage(p);
+        }
+        assertEquals(3, empty.numPages());
+
+        HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 1));
+        p.deleteTuple(p.iterator().next());
+        empty.writePage(p);
+
+        assertEquals(3, empty.numPages());
+        assertEquals(503, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0))).getNumEmptySlots());
+        assertEquals(503, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), 1))).getNumEmptySlots());
+        assertEquals(501, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), 2))).getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
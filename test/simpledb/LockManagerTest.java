@@ -0,0 +1,440 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+
+    private LockManager lm;
+    private PageId pid;
+    private TransactionId t1, t2, t3, t4;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        pid = new HeapPageId(1, 0);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+        t4 = new TransactionId();
+    }
+
+    /** Requests a lock in a new thread */
+    private class Grabber extends Thread {
+        final TransactionId tid;
+        final PageId page;
+        final LockManager.Mode mode;
+        volatile boolean acquired;
+        volatile Exception error;
+
+        Grabber(TransactionId tid, LockManager.Mode mode) {
+            this(tid, pid, mode);
+        }
+
+        Grabber(TransactionId tid, PageId page, LockManager.Mode mode) {
+            this.tid = tid;
+            this.page = page;
+            this.mode = mode;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, page, mode);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    private static void pause() throws InterruptedException {
+        Thread.sleep(TIMEOUT);
+    }
+
+    /**
+     * Readers queued behind a writer are granted together when it releases,
+     * and a writer queued behind them waits for all of them
+     */
+    @Test public void readersGrantedTogether() throws Exception {
+        lm.acquire(t1, pid, LockManager.Mode.EXCLUSIVE);
+        Grabber r2 = new Grabber(t2, LockManager.Mode.SHARED);
+        pause();
+        Grabber r3 = new Grabber(t3, LockManager.Mode.SHARED);
+        pause();
+        Grabber w4 = new Grabber(t4, LockManager.Mode.EXCLUSIVE);
+        pause();
+        assertEquals(3, lm.getQueueLength(pid));
+
+        lm.releaseAll(t1);
+        pause();
+        assertTrue(r2.acquired && r3.acquired);
+        assertFalse(w4.acquired);
+
+        lm.releaseAll(t2);
+        pause();
+        assertFalse(w4.acquired);
+        lm.releaseAll(t3);
+        pause();
+        assertTrue(w4.acquired);
+        assertTrue(lm.isExclusivelyLocked(pid));
+    }
+
+    /** A new reader does not overtake a queued writer */
+    @Test public void writerNotStarved() throws Exception {
+        lm.acquire(t1, pid, LockManager.Mode.SHARED);
+        Grabber w2 = new Grabber(t2, LockManager.Mode.EXCLUSIVE);
+        pause();
+        Grabber r3 = new Grabber(t3, LockManager.Mode.SHARED);
+        pause();
+        assertFalse(w2.acquired);
+        assertFalse(r3.acquired);
+
+        lm.releaseAll(t1);
+        pause();
+        assertTrue(w2.acquired);
+        assertFalse(r3.acquired);
+        lm.releaseAll(t2);
+        pause();
+        assertTrue(r3.acquired);
+    }
+
+    /**
+     * An upgrade goes ahead of the writers already queued, and two upgrades
+     * of the same page deadlock
+     */
+    @Test public void upgrade() throws Exception {
+        lm.acquire(t1, pid, LockManager.Mode.SHARED);
+        lm.acquire(t2, pid, LockManager.Mode.SHARED);
+        Grabber w3 = new Grabber(t3, LockManager.Mode.EXCLUSIVE);
+        pause();
+        Grabber u1 = new Grabber(t1, LockManager.Mode.EXCLUSIVE);
+        pause();
+        assertFalse(u1.acquired);
+
+        lm.release(t2, pid);
+        pause();
+        assertTrue(u1.acquired);
+        assertFalse(w3.acquired);
+        lm.releaseAll(t1);
+        pause();
+        assertTrue(w3.acquired);
+        lm.releaseAll(t3);
+
+        lm.acquire(t1, pid, LockManager.Mode.SHARED);
+        lm.acquire(t2, pid, LockManager.Mode.SHARED);
+        u1 = new Grabber(t1, LockManager.Mode.EXCLUSIVE);
+        pause();
+        try {
+            lm.acquire(t2, pid, LockManager.Mode.EXCLUSIVE);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+        }
+        lm.releaseAll(t2);
+        pause();
+        assertTrue(u1.acquired);
+    }
+
+    /**
+     * The youngest transaction of a deadlock is aborted, even if an older
+     * one closes the cycle, and every lock request it makes fails until it
+     * completes
+     */
+    @Test public void youngestVictim() throws Exception {
+        PageId other = new HeapPageId(1, 1);
+        lm.acquire(t1, pid, LockManager.Mode.EXCLUSIVE);
+        lm.acquire(t2, other, LockManager.Mode.EXCLUSIVE);
+        Grabber w2 = new Grabber(t2, LockManager.Mode.EXCLUSIVE);
+        pause();
+        assertFalse(w2.acquired);
+
+        Thread closer = new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(t1, new HeapPageId(1, 1), LockManager.Mode.EXCLUSIVE);
+                } catch (TransactionAbortedException e) {
+                }
+            }
+        };
+        closer.setDaemon(true);
+        closer.start();
+        pause();
+        assertTrue(w2.error instanceof TransactionAbortedException);
+        assertTrue(closer.isAlive());
+        try {
+            lm.acquire(t2, new HeapPageId(1, 2), LockManager.Mode.SHARED);
+            fail("expected the victim to abort");
+        } catch (TransactionAbortedException e) {
+        }
+
+        lm.releaseAll(t2);
+        closer.join(TIMEOUT * 10);
+        assertTrue(lm.holdsLock(t1, other));
+        lm.acquire(t2, new HeapPageId(1, 2), LockManager.Mode.SHARED);
+    }
+
+    /**
+     * A request that closes two cycles at once aborts the youngest
+     * transaction of each
+     */
+    @Test public void twoCyclesAtOnce() throws Exception {
+        PageId other = new HeapPageId(1, 1);
+        lm.acquire(t1, pid, LockManager.Mode.EXCLUSIVE);
+        lm.acquire(t2, other, LockManager.Mode.SHARED);
+        lm.acquire(t3, other, LockManager.Mode.SHARED);
+        Grabber w2 = new Grabber(t2, LockManager.Mode.SHARED);
+        Grabber w3 = new Grabber(t3, LockManager.Mode.SHARED);
+        pause();
+        Grabber w1 = new Grabber(t1, other, LockManager.Mode.EXCLUSIVE);
+        pause();
+        assertTrue(w2.error instanceof TransactionAbortedException);
+        assertTrue(w3.error instanceof TransactionAbortedException);
+        assertNull(w1.error);
+
+        lm.releaseAll(t2);
+        lm.releaseAll(t3);
+        pause();
+        assertTrue(w1.acquired);
+    }
+
+    /**
+     * A holder that releases its lock before it completes is no longer
+     * waited for, so its waiting for one of those waiters closes no cycle
+     */
+    @Test public void earlyReleaseIsNoDeadlock() throws Exception {
+        PageId other = new HeapPageId(1, 1);
+        lm.acquire(t1, pid, LockManager.Mode.SHARED);
+        lm.acquire(t3, pid, LockManager.Mode.SHARED);
+        lm.acquire(t2, other, LockManager.Mode.EXCLUSIVE);
+        Grabber w2 = new Grabber(t2, LockManager.Mode.EXCLUSIVE);
+        pause();
+        lm.release(t1, pid);
+        Grabber w1 = new Grabber(t1, other, LockManager.Mode.SHARED);
+        pause();
+        assertNull(w2.error);
+        assertNull(w1.error);
+        assertFalse(w2.acquired);
+        assertFalse(w1.acquired);
+
+        lm.releaseAll(t3);
+        pause();
+        assertTrue(w2.acquired);
+        lm.releaseAll(t2);
+        pause();
+        assertTrue(w1.acquired);
+    }
+
+    /**
+     * Under WAIT_DIE, a younger transaction aborts instead of waiting for an
+     * older one, and an older one waits
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        lm.acquire(t1, pid, LockManager.Mode.EXCLUSIVE);
+        Grabber w2 = new Grabber(t2, LockManager.Mode.SHARED);
+        pause();
+        assertTrue(w2.error instanceof TransactionAbortedException);
+        lm.releaseAll(t2);
+
+        lm.releaseAll(t1);
+        lm.acquire(t2, pid, LockManager.Mode.SHARED);
+        Grabber w1 = new Grabber(t1, LockManager.Mode.EXCLUSIVE);
+        pause();
+        assertFalse(w1.acquired);
+        assertNull(w1.error);
+        lm.releaseAll(t2);
+        pause();
+        assertTrue(w1.acquired);
+    }
+
+    /**
+     * Under WOUND_WAIT, an older transaction aborts the younger one it would
+     * wait for at its next request, and a younger one waits
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        lm.acquire(t1, pid, LockManager.Mode.EXCLUSIVE);
+        Grabber w3 = new Grabber(t3, LockManager.Mode.SHARED);
+        pause();
+        assertFalse(w3.acquired);
+        assertNull(w3.error);
+        lm.releaseAll(t1);
+        pause();
+        assertTrue(w3.acquired);
+
+        Grabber w2 = new Grabber(t2, LockManager.Mode.EXCLUSIVE);
+        pause();
+        assertFalse(w2.acquired);
+        try {
+            lm.acquire(t3, new HeapPageId(1, 1), LockManager.Mode.SHARED);
+            fail("expected the wounded transaction to abort");
+        } catch (TransactionAbortedException e) {
+        }
+        lm.releaseAll(t3);
+        pause();
+        assertTrue(w2.acquired);
+    }
+
+    /** Under TIMEOUT, a request aborts once it has waited for the lock timeout */
+    @Test public void timeout() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.TIMEOUT);
+        lm.setLockTimeout(TIMEOUT);
+        lm.acquire(t2, pid, LockManager.Mode.EXCLUSIVE);
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquire(t1, pid, LockManager.Mode.SHARED);
+            fail("expected a timeout");
+        } catch (TransactionAbortedException e) {
+        }
+        assertTrue(System.currentTimeMillis() - start >= TIMEOUT);
+        assertFalse(lm.holdsLock(t1, pid));
+        assertEquals(0, lm.getQueueLength(pid));
+    }
+
+    /**
+     * A transaction that locks escalationThreshold pages of a table locks the
+     * table instead, and releases its page locks
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(3);
+        for (int i = 0; i < 3; i++)
+            lm.acquire(t1, new HeapPageId(1, i), LockManager.Mode.SHARED);
+        assertEquals(LockManager.Mode.SHARED, lm.getTableLock(t1, 1));
+        assertEquals(1, lm.getNumLockHeads());
+        assertTrue(lm.holdsLock(t1, new HeapPageId(1, 5)));
+
+        // other readers are not affected, writers wait for the table lock
+        lm.acquire(t2, new HeapPageId(1, 7), LockManager.Mode.SHARED);
+        pid = new HeapPageId(1, 8);
+        Grabber w3 = new Grabber(t3, LockManager.Mode.EXCLUSIVE);
+        pause();
+        assertFalse(w3.acquired);
+        lm.releaseAll(t1);
+        pause();
+        assertTrue(w3.acquired);
+        assertTrue(lm.isExclusivelyLocked(pid));
+    }
+
+    /** A table lock that would have to wait is not escalated */
+    @Test public void escalationDoesNotWait() throws Exception {
+        lm.setEscalationThreshold(3);
+        lm.acquire(t2, new HeapPageId(1, 10), LockManager.Mode.EXCLUSIVE);
+        for (int i = 0; i < 3; i++)
+            lm.acquire(t1, new HeapPageId(1, i), LockManager.Mode.SHARED);
+        assertEquals(LockManager.Mode.INTENTION_SHARED, lm.getTableLock(t1, 1));
+        assertEquals(LockManager.Mode.INTENTION_EXCLUSIVE, lm.getTableLock(t2, 1));
+        assertEquals(5, lm.getNumLockHeads());
+
+        // an exclusive page lock escalates to an exclusive table lock
+        lm.releaseAll(t2);
+        lm.acquire(t1, new HeapPageId(1, 3), LockManager.Mode.EXCLUSIVE);
+        assertEquals(LockManager.Mode.EXCLUSIVE, lm.getTableLock(t1, 1));
+        assertEquals(1, lm.getNumLockHeads());
+        assertTrue(lm.isExclusivelyLocked(new HeapPageId(1, 0)));
+        lm.releaseAll(t1);
+        assertEquals(0, lm.getNumLockHeads());
+    }
+
+    /**
+     * Acquisitions, waits, wait time, aborts and queue lengths are counted
+     * per page and per table, and waiting requests show in the waits-for
+     * graph
+     */
+    @Test public void stats() throws Exception {
+        PageId other = new HeapPageId(1, 1);
+        lm.acquire(t1, pid, LockManager.Mode.EXCLUSIVE);
+        lm.acquire(t1, other, LockManager.Mode.SHARED);
+        Grabber w2 = new Grabber(t2, LockManager.Mode.SHARED);
+        pause();
+        Grabber w3 = new Grabber(t3, LockManager.Mode.EXCLUSIVE);
+        pause();
+        assertEquals(2, lm.getWaitsForGraph().size());
+        assertTrue(lm.getWaitsForGraph().get(t2).contains(t1));
+        assertTrue(lm.dumpWaitsForGraph().contains("on table 1 page 0"));
+
+        lm.releaseAll(t1);
+        pause();
+        assertTrue(w2.acquired);
+        lm.releaseAll(t2);
+        pause();
+        assertTrue(w3.acquired);
+        lm.releaseAll(t3);
+        assertTrue(lm.getWaitsForGraph().isEmpty());
+
+        LockStats.Counts c = lm.getStats().getPageStats(pid);
+        assertEquals(3, c.getAcquisitions());
+        assertEquals(2, c.getWaits());
+        assertEquals(2, c.getMaxQueueLength());
+        assertTrue(c.getWaitTime() >= TIMEOUT * 1000000L);
+        assertEquals(0, c.getDeadlockAborts());
+        // other was never waited for, so only its table remembers it
+        assertEquals(0, lm.getStats().getPageStats(other).getAcquisitions());
+        // the table lock is taken once by each transaction
+        assertEquals(7, lm.getStats().getTableStats(1).getAcquisitions());
+        assertEquals(pid, lm.getStats().getMostContendedPages(10).get(0));
+        assertEquals(1, lm.getStats().getMostContendedPages(10).size());
+
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        lm.acquire(t1, other, LockManager.Mode.EXCLUSIVE);
+        try {
+            lm.acquire(t2, other, LockManager.Mode.SHARED);
+            fail("expected t2 to die");
+        } catch (TransactionAbortedException e) {
+        }
+        assertEquals(1, lm.getStats().getPageStats(other).getDeadlockAborts());
+        assertEquals(1, lm.getStats().getTableStats(1).getDeadlockAborts());
+    }
+
+    /**
+     * The counters of a page are kept after its lock head retires only if it
+     * was waited for, and only for the most contended of those pages
+     */
+    @Test public void statsBounded() throws Exception {
+        LockStats stats = lm.getStats();
+        int n = LockStats.MAX_RETAINED + 10;
+        for (int i = 0; i < n; i++) {
+            PageId p = new HeapPageId(2, i);
+            stats.waiting(p, 2, 1);
+            stats.waited(p, 2, i + 1, true);
+            stats.retired(p);
+        }
+        for (int i = 0; i < 10; i++)
+            assertEquals(0, stats.getPageStats(new HeapPageId(2, i)).getWaits());
+        assertEquals(1, stats.getPageStats(new HeapPageId(2, 10)).getWaits());
+        assertEquals(n, stats.getTableStats(2).getWaits());
+        assertEquals(new HeapPageId(2, n - 1), stats.getMostContendedPages(1).get(0));
+
+        // locking a retained page again carries its counters on
+        PageId p = new HeapPageId(2, n - 1);
+        lm.acquire(t1, p, LockManager.Mode.SHARED);
+        lm.releaseAll(t1);
+        assertEquals(2, stats.getPageStats(p).getAcquisitions());
+
+        // uncontended pages are forgotten once they are unlocked
+        for (int i = 0; i < 100; i++) {
+            PageId q = new HeapPageId(3, i);
+            lm.acquire(t1, q, LockManager.Mode.SHARED);
+            assertEquals(1, stats.getPageStats(q).getAcquisitions());
+        }
+        lm.releaseAll(t1);
+        assertEquals(0, stats.getPageStats(new HeapPageId(3, 0)).getAcquisitions());
+        assertEquals(101, stats.getTableStats(3).getAcquisitions());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
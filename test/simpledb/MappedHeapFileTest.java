@@ -0,0 +1,94 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private MappedHeapFile mf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3 + 10, null, null);
+        mf = new MappedHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(mf, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        // the catalog only knows about mf, which replaced hf
+        hf.close();
+    }
+
+    /**
+     * Unit test for MappedHeapFile.readPage(): pages read from the mapping
+     * match the pages read from the file
+     */
+    @Test
+    public void readPage() throws Exception {
+        assertEquals(4, mf.numPages());
+        for (int i = 0; i < 4; i++) {
+            HeapPage expected = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            HeapPage actual = (HeapPage) mf.readPage(new HeapPageId(mf.getId(), i));
+            assertEquals(expected.getNumEmptySlots(), actual.getNumEmptySlots());
+            assertArrayEquals(expected.getPageData(), actual.getPageData());
+            assertArrayEquals(expected.getPageData(), actual.getBeforeImage().getPageData());
+        }
+    }
+
+    /**
+     * Pages written after the file was mapped, including new pages past the
+     * end of the mapping, are visible to later reads
+     */
+    @Test
+    public void writePage() throws Exception {
+        HeapPage p = (HeapPage) mf.readPage(new HeapPageId(mf.getId(), 3));
+        p.deleteTuple(p.iterator().next());
+        mf.writePage(p);
+        assertEquals(495, ((HeapPage) mf.readPage(new HeapPageId(mf.getId(), 3))).getNumEmptySlots());
+
+        HeapPage added = new HeapPage(new HeapPageId(mf.getId(), 4), HeapPage.createEmptyPageData());
+        added.insertTuple(Utility.getHeapTuple(1, 2));
+        mf.writePage(added);
+        assertEquals(5, mf.numPages());
+        assertEquals(503, ((HeapPage) mf.readPage(new HeapPageId(mf.getId(), 4))).getNumEmptySlots());
+    }
+
+    /**
+     * A scan of a MappedHeapFile through the buffer pool returns every tuple
+     */
+    @Test
+    public void scan() throws Exception {
+        DbFileIterator it = mf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertNotNull(it.next());
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 3 + 10, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
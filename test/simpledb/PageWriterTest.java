@@ -0,0 +1,128 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageWriterTest extends SimpleDbTestBase {
+
+    /** Time to wait for commits to be queued, in ms */
+    private static final int TIMEOUT = 100;
+
+    private PageWriter writer;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        writer = new PageWriter();
+    }
+
+    /** A SkeletonFile whose writes wait until released, then throw failure if set */
+    private static class WriteFile extends SkeletonFile {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Throwable failure;
+
+        WriteFile(int tableid, boolean blocked, Throwable failure) {
+            super(tableid, Utility.getTupleDesc(2));
+            this.failure = failure;
+            if (!blocked)
+                release.countDown();
+            Database.getCatalog().addTable(this, SystemTestUtil.getUUID());
+        }
+
+        public void writePage(Page p) throws IOException {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+        }
+
+        public void writePages(List<Page> pages) throws IOException {
+            writePage(pages.get(0));
+        }
+
+        Page page() throws IOException {
+            return new HeapPage(new HeapPageId(getId(), 0), HeapPage.createEmptyPageData());
+        }
+    }
+
+    /** Commits the page of a file in a new thread */
+    private class Committer extends Thread {
+        final Page page;
+        volatile Exception error;
+
+        Committer(WriteFile f) throws IOException {
+            this.page = f.page();
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                writer.write(Arrays.asList(page));
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * A failed write only fails the commits that had pages in it, even if
+     * other commits were written together with them
+     */
+    @Test public void failureOnlyFailsItsCommit() throws Exception {
+        WriteFile blocked = new WriteFile(1, true, null);
+        WriteFile good = new WriteFile(2, false, null);
+        WriteFile bad = new WriteFile(3, false, new IOException("bad file"));
+
+        Committer c1 = new Committer(blocked);
+        blocked.writing.await();
+        // queued while the writer is busy, so written together
+        Committer c2 = new Committer(good);
+        Committer c3 = new Committer(bad);
+        Thread.sleep(TIMEOUT);
+        blocked.release.countDown();
+        c1.join();
+        c2.join();
+        c3.join();
+
+        assertNull(c1.error);
+        assertNull(c2.error);
+        assertTrue(c3.error instanceof IOException);
+        assertEquals(2, writer.getWriteCount());
+    }
+
+    /** A commit whose write throws an Error fails instead of waiting forever */
+    @Test public void errorFailsCommit() throws Exception {
+        WriteFile broken = new WriteFile(1, false, new AssertionError("broken file"));
+        Committer c = new Committer(broken);
+        c.join(10 * TIMEOUT);
+        assertFalse(c.isAlive());
+        assertTrue(c.error instanceof IOException);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
@@ -0,0 +1,192 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.Evictable ANY = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static PageId pid(int pgno) {
+        return new HeapPageId(1, pgno);
+    }
+
+    /**
+     * Simulate a buffer pool of numPages frames over the reference string
+     * and return the number of hits from position from onwards.
+     */
+    private static int hits(ReplacementPolicy policy, int numPages, int[] refs, int from) {
+        HashSet<PageId> resident = new HashSet<PageId>();
+        int hits = 0;
+        for (int i = 0; i < refs.length; i++) {
+            PageId p = pid(refs[i]);
+            if (resident.contains(p)) {
+                if (i >= from)
+                    hits++;
+            }
+            else {
+                if (resident.size() >= numPages) {
+                    PageId victim = policy.chooseVictim(ANY);
+                    assertNotNull(victim);
+                    assertTrue(resident.remove(victim));
+                    policy.pageRemoved(victim);
+                }
+                resident.add(p);
+            }
+            policy.pageAccessed(p);
+        }
+        return hits;
+    }
+
+    /**
+     * A hot set of 4 pages probed repeatedly between references to cold
+     * pages, interrupted by a one-pass scan of 40 pages, in a pool of 8
+     * frames.
+     */
+    private static final int SCAN_END = 6 * 10 + 40;
+
+    private static int[] hotSetWithScan() {
+        int[] refs = new int[SCAN_END + 6 * 10];
+        int i = 0;
+        int cold = 1000;
+        for (int round = 0; round < 10; round++) {
+            for (int h = 0; h < 4; h++)
+                refs[i++] = h;
+            refs[i++] = cold++;
+            refs[i++] = cold++;
+        }
+        for (int s = 0; s < 40; s++)
+            refs[i++] = 100 + s;
+        for (int round = 0; round < 10; round++) {
+            for (int h = 0; h < 4; h++)
+                refs[i++] = h;
+            refs[i++] = cold++;
+            refs[i++] = cold++;
+        }
+        return refs;
+    }
+
+    /**
+     * Unit test for the LRU policy
+     */
+    @Test public void lru() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.LRU.create(3);
+        policy.pageAccessed(pid(0));
+        policy.pageAccessed(pid(1));
+        policy.pageAccessed(pid(2));
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for the CLOCK policy: referenced pages get a second chance
+     */
+    @Test public void clock() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.CLOCK.create(3);
+        policy.pageAccessed(pid(0));
+        policy.pageAccessed(pid(1));
+        policy.pageAccessed(pid(2));
+        // the first sweep clears every bit, so the hand stops at page 0
+        assertEquals(pid(0), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(0));
+        policy.pageAccessed(pid(3));
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(ANY));
+    }
+
+    /**
+     * Every policy must honour the Evictable filter
+     */
+    @Test public void skipsUnevictable() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(4);
+            for (int i = 0; i < 4; i++)
+                policy.pageAccessed(pid(i));
+            PageId victim = policy.chooseVictim(new ReplacementPolicy.Evictable() {
+                public boolean canEvict(PageId p) {
+                    return p.pageNumber() == 2;
+                }
+            });
+            assertEquals(kind.toString(), pid(2), victim);
+            assertNull(kind.toString(), policy.chooseVictim(new ReplacementPolicy.Evictable() {
+                public boolean canEvict(PageId p) {
+                    return false;
+                }
+            }));
+        }
+    }
+
+    /**
+     * 2Q and LRU-K keep the hot set resident across a sequential scan; LRU
+     * does not
+     */
+    @Test public void scanResistance() {
+        int[] refs = hotSetWithScan();
+        // every hot page misses once after the scan under LRU
+        assertEquals(4 * 9, hits(ReplacementPolicy.Kind.LRU.create(8), 8, refs, SCAN_END));
+        assertEquals(4 * 10, hits(ReplacementPolicy.Kind.TWO_Q.create(8), 8, refs, SCAN_END));
+        assertEquals(4 * 10, hits(ReplacementPolicy.Kind.LRU_K.create(8), 8, refs, SCAN_END));
+    }
+
+    /**
+     * Pages loaded by a cold scan are evicted before anything else, so under
+     * every policy the scan keeps recycling one frame
+     */
+    @Test public void coldScan() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(8);
+            HashSet<PageId> resident = new HashSet<PageId>();
+            for (int i = 0; i < 8; i++) {
+                policy.pageAccessed(pid(i));
+                resident.add(pid(i));
+            }
+            for (int s = 100; s < 140; s++) {
+                PageId victim = policy.chooseVictim(ANY);
+                assertTrue(kind.toString(), resident.remove(victim));
+                policy.pageRemoved(victim);
+                policy.pageScanned(pid(s));
+                resident.add(pid(s));
+            }
+            // only one of the original pages made room for the scan
+            int survivors = 0;
+            for (int i = 0; i < 8; i++)
+                if (resident.contains(pid(i)))
+                    survivors++;
+            assertEquals(kind.toString(), 7, survivors);
+        }
+    }
+
+    /**
+     * A page a cold scan loads again while 2Q still remembers it in A1out is
+     * tracked like any other scanned page, and can be evicted
+     */
+    @Test public void twoQueueScanAfterEviction() {
+        ReplacementPolicy policy = ReplacementPolicy.Kind.TWO_Q.create(8);
+        policy.pageAccessed(pid(1));
+        policy.pageRemoved(pid(1));
+        policy.pageScanned(pid(1));
+        assertEquals(pid(1), policy.chooseVictim(ANY));
+        policy.pageRemoved(pid(1));
+        assertNull(policy.chooseVictim(ANY));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -209,10 +209,18 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public Page decodePage(PageId id, byte[] data) {
+            throw new RuntimeException("not implemented");
+        }
+
         public void writePage(Page p) throws IOException {
             throw new RuntimeException("not implemented");
         }
 
+        public void writePages(List<Page> pages) throws IOException {
+            throw new RuntimeException("not implemented");
+        }
+
         public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
@@ -235,9 +243,20 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public DbFileIterator iterator(TransactionId tid, boolean coldScan) {
+            throw new RuntimeException("not implemented");
+        }
+
 		public TupleDesc getTupleDesc() {			
 			return td;
 		}
+
+        public int getPageSize() {
+            return BufferPool.getPageSize();
+        }
+
+        public void close() {
+        }
     }
 
     /**
@@ -1,5 +1,6 @@
 package simpledb.systemtest;
 
+import org.junit.After;
 import org.junit.Before;
 
 import simpledb.Database;
@@ -16,5 +17,12 @@ public class SimpleDbTestBase {
 	@Before	public void setUp() throws Exception {					
 		Database.reset();
 	}
+
+	/**
+	 * Release the files of the tables the test created.
+	 */
+	@After public void closeFiles() throws Exception {
+		Database.getCatalog().clear();
+	}
 	
 }